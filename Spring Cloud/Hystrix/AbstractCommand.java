@@ -13,6 +13,7 @@ import com.netflix.hystrix.exception.HystrixRuntimeException.FailureType;
 import com.netflix.hystrix.strategy.HystrixPlugins;
 import com.netflix.hystrix.strategy.concurrency.HystrixConcurrencyStrategy;
 import com.netflix.hystrix.strategy.concurrency.HystrixContextRunnable;
+import com.netflix.hystrix.strategy.concurrency.HystrixContextScheduler;
 import com.netflix.hystrix.strategy.concurrency.HystrixRequestContext;
 import com.netflix.hystrix.strategy.eventnotifier.HystrixEventNotifier;
 import com.netflix.hystrix.strategy.executionhook.HystrixCommandExecutionHook;
@@ -22,9 +23,14 @@ import com.netflix.hystrix.strategy.properties.HystrixPropertiesStrategy;
 import com.netflix.hystrix.strategy.properties.HystrixProperty;
 import com.netflix.hystrix.util.HystrixTimer;
 import com.netflix.hystrix.util.HystrixTimer.TimerListener;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.ref.Reference;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -34,6 +40,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import rx.Notification;
 import rx.Observable;
+import rx.Scheduler;
 import rx.Subscriber;
 import rx.Subscription;
 import rx.Observable.Operator;
@@ -41,6 +48,7 @@ import rx.functions.Action0;
 import rx.functions.Action1;
 import rx.functions.Func0;
 import rx.functions.Func1;
+import rx.schedulers.Schedulers;
 import rx.subjects.ReplaySubject;
 import rx.subscriptions.CompositeSubscription;
 
@@ -320,10 +328,11 @@ abstract class AbstractCommand<R> implements HystrixInvokableInfo<R>, HystrixObs
         if (this.circuitBreaker.allowRequest()) {
             final AbstractCommand.TryableSemaphore executionSemaphore = this.getExecutionSemaphore();
             final AtomicBoolean semaphoreHasBeenReleased = new AtomicBoolean(false);
+            final long semaphoreAcquiredNanos = System.nanoTime();
             Action0 singleSemaphoreRelease = new Action0() {
                 public void call() {
                     if (semaphoreHasBeenReleased.compareAndSet(false, true)) {
-                        executionSemaphore.release();
+                        AbstractCommand.this.releaseSemaphore(executionSemaphore, semaphoreAcquiredNanos, false);
                     }
 
                 }
@@ -414,7 +423,16 @@ abstract class AbstractCommand<R> implements HystrixInvokableInfo<R>, HystrixObs
         return execution.doOnNext(markEmits).doOnCompleted(markOnCompleted).onErrorResumeNext(handleFallback).doOnEach(setRequestContext);
     }
 
+	// 是否使用虚拟线程隔离 每次执行一个虚拟线程 不占用线程池 并发数由执行信号量(或自适应限制器)控制
+    private boolean isVirtualThreadIsolation() {
+        return (Boolean)HystrixCommandExtendedProperties.getInstance(this.commandKey).executionIsolationVirtualThreadEnabled().get();
+    }
+
     private Observable<R> executeCommandWithSpecifiedIsolation(final AbstractCommand<R> _cmd) {
+        if (this.isVirtualThreadIsolation()) {
+            return this.executeCommandOnVirtualThread(_cmd);
+        }
+
         return this.properties.executionIsolationStrategy().get() == ExecutionIsolationStrategy.THREAD ? Observable.defer(new Func0<Observable<R>>() {
             public Observable<R> call() {
                 AbstractCommand.this.executionResult = AbstractCommand.this.executionResult.setExecutionOccurred();
@@ -488,6 +506,42 @@ abstract class AbstractCommand<R> implements HystrixInvokableInfo<R>, HystrixObs
         });
     }
 
+	// 虚拟线程隔离
+	// 执行逻辑同信号量隔离 只是subscribeOn到虚拟线程上 超时仍然由executeCommandAndObserve里的HystrixObservableTimeoutOperator(timeoutTimer)处理
+	// 超时后不会中断虚拟线程 run()会继续执行完 结果被丢弃
+    private Observable<R> executeCommandOnVirtualThread(final AbstractCommand<R> _cmd) {
+        Scheduler virtualThreadScheduler = AbstractCommand.VirtualThreadSchedulerHolder.SCHEDULER;
+        if (virtualThreadScheduler == null) {
+            return Observable.error(new IllegalStateException("execution.isolation.virtualThread.enabled requires JDK 21 or later"));
+        }
+
+        return Observable.defer(new Func0<Observable<R>>() {
+            public Observable<R> call() {
+                AbstractCommand.this.executionResult = AbstractCommand.this.executionResult.setExecutionOccurred();
+                if (!AbstractCommand.this.commandState.compareAndSet(AbstractCommand.CommandState.OBSERVABLE_CHAIN_CREATED, AbstractCommand.CommandState.USER_CODE_EXECUTED)) {
+                    return Observable.error(new IllegalStateException("execution attempted while in state : " + ((AbstractCommand.CommandState)AbstractCommand.this.commandState.get()).name()));
+                } else {
+					// 监控按信号量隔离统计 没有线程池
+                    AbstractCommand.this.metrics.markCommandStart(AbstractCommand.this.commandKey, AbstractCommand.this.threadPoolKey, ExecutionIsolationStrategy.SEMAPHORE);
+                    if (AbstractCommand.this.isCommandTimedOut.get() == AbstractCommand.TimedOutStatus.TIMED_OUT) {
+                        return Observable.error(new RuntimeException("timed out before executing run()"));
+                    } else {
+						// 不标记setExecutedInThread 否则threadPoolKey的线程池监控会统计到没有经过线程池的执行
+                        AbstractCommand.this.endCurrentThreadExecutingCommand = Hystrix.startCurrentThreadExecutingCommand(AbstractCommand.this.getCommandKey());
+
+                        try {
+                            AbstractCommand.this.executionHook.onRunStart(_cmd);
+                            AbstractCommand.this.executionHook.onExecutionStart(_cmd);
+                            return AbstractCommand.this.getUserExecutionObservable(_cmd);
+                        } catch (Throwable var2) {
+                            return Observable.error(var2);
+                        }
+                    }
+                }
+            }
+        }).subscribeOn(new HystrixContextScheduler(this.concurrencyStrategy, virtualThreadScheduler));
+    }
+
     private Observable<R> getFallbackOrThrowException(final AbstractCommand<R> _cmd, HystrixEventType eventType, final FailureType failureType, final String message, final Exception originalException) {
         final HystrixRequestContext requestContext = HystrixRequestContext.getContextForCurrentThread();
         long latency = System.currentTimeMillis() - this.executionResult.getStartTimestamp();
@@ -551,10 +605,11 @@ abstract class AbstractCommand<R> implements HystrixInvokableInfo<R>, HystrixObs
                 };
                 final AbstractCommand.TryableSemaphore fallbackSemaphore = this.getFallbackSemaphore();
                 final AtomicBoolean semaphoreHasBeenReleased = new AtomicBoolean(false);
+                final long semaphoreAcquiredNanos = System.nanoTime();
                 Action0 singleSemaphoreRelease = new Action0() {
                     public void call() {
                         if (semaphoreHasBeenReleased.compareAndSet(false, true)) {
-                            fallbackSemaphore.release();
+                            AbstractCommand.this.releaseSemaphore(fallbackSemaphore, semaphoreAcquiredNanos, true);
                         }
 
                     }
@@ -658,6 +713,7 @@ abstract class AbstractCommand<R> implements HystrixInvokableInfo<R>, HystrixObs
         Exception semaphoreRejectionException = new RuntimeException("could not acquire a semaphore for execution");
         this.executionResult = this.executionResult.setExecutionException(semaphoreRejectionException);
         this.eventNotifier.markEvent(HystrixEventType.SEMAPHORE_REJECTED, this.commandKey);
+        this.circuitBreaker.markNonSuccess();
         logger.debug("HystrixCommand Execution Rejection by Semaphore.");
         return this.getFallbackOrThrowException(this, HystrixEventType.SEMAPHORE_REJECTED, FailureType.REJECTED_SEMAPHORE_EXECUTION, "could not acquire a semaphore for execution", semaphoreRejectionException);
     }
@@ -677,10 +733,12 @@ abstract class AbstractCommand<R> implements HystrixInvokableInfo<R>, HystrixObs
     private Observable<R> handleThreadPoolRejectionViaFallback(Exception underlying) {
         this.eventNotifier.markEvent(HystrixEventType.THREAD_POOL_REJECTED, this.commandKey);
         this.threadPool.markThreadRejection();
+        this.circuitBreaker.markNonSuccess();
         return this.getFallbackOrThrowException(this, HystrixEventType.THREAD_POOL_REJECTED, FailureType.REJECTED_THREAD_EXECUTION, "could not be queued for execution", underlying);
     }
 
     private Observable<R> handleTimeoutViaFallback() {
+        this.circuitBreaker.markNonSuccess();
         return this.getFallbackOrThrowException(this, HystrixEventType.TIMEOUT, FailureType.TIMEOUT, "timed-out", new TimeoutException());
     }
 
@@ -707,6 +765,7 @@ abstract class AbstractCommand<R> implements HystrixInvokableInfo<R>, HystrixObs
     private Observable<R> handleFailureViaFallback(Exception underlying) {
         logger.debug("Error executing HystrixCommand.run(). Proceeding to fallback logic ...", underlying);
         this.eventNotifier.markEvent(HystrixEventType.FAILURE, this.commandKey);
+        this.circuitBreaker.markNonSuccess();
         this.executionResult = this.executionResult.setException(underlying);
         return this.getFallbackOrThrowException(this, HystrixEventType.FAILURE, FailureType.COMMAND_EXCEPTION, "failed", underlying);
     }
@@ -784,10 +843,35 @@ abstract class AbstractCommand<R> implements HystrixInvokableInfo<R>, HystrixObs
             HystrixRequestContext.setContextOnCurrentThread(currentRequestContext);
         }
 
+    }
+
+	// 释放信号量 自适应限制器同时上报本次RTT和结果 过载信号按信号量区分
+	//   执行信号量: 超时/线程池拒绝 业务异常(FAILURE)不说明依赖过载
+	//   降级信号量: 降级拒绝/降级失败 执行失败后才走降级 不能把执行的失败算到降级上
+    private void releaseSemaphore(AbstractCommand.TryableSemaphore semaphore, long acquiredNanos, boolean fallback) {
+        if (semaphore instanceof HystrixAdaptiveConcurrencyLimiter) {
+            EventCounts eventCounts = this.executionResult.getEventCounts();
+            boolean dropped;
+            if (fallback) {
+                dropped = eventCounts.contains(HystrixEventType.FALLBACK_REJECTION) || eventCounts.contains(HystrixEventType.FALLBACK_FAILURE);
+            } else {
+                dropped = eventCounts.contains(HystrixEventType.TIMEOUT) || eventCounts.contains(HystrixEventType.THREAD_POOL_REJECTED);
+            }
+
+            ((HystrixAdaptiveConcurrencyLimiter)semaphore).release(System.nanoTime() - acquiredNanos, dropped);
+        } else {
+            semaphore.release();
+        }
+
     }
 
     protected AbstractCommand.TryableSemaphore getFallbackSemaphore() {
         if (this.fallbackSemaphoreOverride == null) {
+			// 开启自适应时许可数由限制器根据RTT动态调整 fallbackIsolationSemaphoreMaxConcurrentRequests只作为初始值
+            if ((Boolean)HystrixCommandExtendedProperties.getInstance(this.commandKey).fallbackIsolationSemaphoreAdaptiveEnabled().get()) {
+                return HystrixAdaptiveConcurrencyLimiter.getFallbackInstance(this.commandKey, this.properties);
+            }
+
             AbstractCommand.TryableSemaphore _s = (AbstractCommand.TryableSemaphore)fallbackSemaphorePerCircuit.get(this.commandKey.name());
             if (_s == null) {
                 fallbackSemaphorePerCircuit.putIfAbsent(this.commandKey.name(), new AbstractCommand.TryableSemaphoreActual(this.properties.fallbackIsolationSemaphoreMaxConcurrentRequests()));
@@ -800,9 +884,15 @@ abstract class AbstractCommand<R> implements HystrixInvokableInfo<R>, HystrixObs
         }
     }
 
+	// 虚拟线程隔离没有线程池大小的限制 同样用执行信号量限制每个commandKey的并发
     protected AbstractCommand.TryableSemaphore getExecutionSemaphore() {
-        if (this.properties.executionIsolationStrategy().get() == ExecutionIsolationStrategy.SEMAPHORE) {
+        if (this.properties.executionIsolationStrategy().get() == ExecutionIsolationStrategy.SEMAPHORE || this.isVirtualThreadIsolation()) {
             if (this.executionSemaphoreOverride == null) {
+				// 开启自适应时许可数由限制器根据RTT动态调整 executionIsolationSemaphoreMaxConcurrentRequests只作为初始值
+                if ((Boolean)HystrixCommandExtendedProperties.getInstance(this.commandKey).executionIsolationSemaphoreAdaptiveEnabled().get()) {
+                    return HystrixAdaptiveConcurrencyLimiter.getExecutionInstance(this.commandKey, this.properties);
+                }
+
                 AbstractCommand.TryableSemaphore _s = (AbstractCommand.TryableSemaphore)executionSemaphorePerCircuit.get(this.commandKey.name());
                 if (_s == null) {
                     executionSemaphorePerCircuit.putIfAbsent(this.commandKey.name(), new AbstractCommand.TryableSemaphoreActual(this.properties.executionIsolationSemaphoreMaxConcurrentRequests()));
@@ -1285,6 +1375,29 @@ abstract class AbstractCommand<R> implements HystrixInvokableInfo<R>, HystrixObs
         }
     }
 
+	// 虚拟线程调度器 延迟初始化 未开启虚拟线程隔离时不会加载
+	// Executors.newVirtualThreadPerTaskExecutor()是JDK 21的方法 通过MethodHandle查找 本类在低版本JDK上也能编译和运行 查找不到时SCHEDULER为null
+    private static class VirtualThreadSchedulerHolder {
+        static final Scheduler SCHEDULER = createScheduler();
+
+        private VirtualThreadSchedulerHolder() {
+        }
+
+        private static Scheduler createScheduler() {
+            try {
+                MethodHandle factory = MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+                return Schedulers.from((ExecutorService)factory.invokeExact());
+            } catch (NoSuchMethodException | IllegalAccessException var1) {
+                AbstractCommand.logger.warn("Virtual threads are not available on this JVM, commands with execution.isolation.virtualThread.enabled will fail", var1);
+                return null;
+            } catch (RuntimeException | Error var2) {
+                throw var2;
+            } catch (Throwable var3) {
+                throw new IllegalStateException("Failed to create virtual thread executor", var3);
+            }
+        }
+    }
+
     interface TryableSemaphore {
         boolean tryAcquire();
 
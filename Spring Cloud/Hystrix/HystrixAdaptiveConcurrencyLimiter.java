@@ -0,0 +1,167 @@
+package com.netflix.hystrix;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 自适应并发限制器 代替固定许可数的TryableSemaphoreActual
+// 许可数(limit)根据每次执行的RTT和是否失败实时调整 每个commandKey一个实例(执行和降级各一个)
+//   AIMD      成功且并发用到一半以上时limit+1 过载(执行超时/线程池拒绝 降级失败/拒绝)时limit*0.9
+//   GRADIENT  比较短期RTT和长期RTT(无排队时的延迟) 短期RTT变大说明开始排队 按比例缩小limit 否则增加sqrt(limit)的排队余量
+// tryAcquire/release只操作原子变量 调整limit的线程用CAS抢占 抢不到时丢弃本次样本 释放路径不加锁不阻塞
+public class HystrixAdaptiveConcurrencyLimiter implements AbstractCommand.TryableSemaphore {
+    private static final ConcurrentHashMap<String, HystrixAdaptiveConcurrencyLimiter> executionLimitersByCommand = new ConcurrentHashMap();	// commandKey与执行限制器的映射关系
+    private static final ConcurrentHashMap<String, HystrixAdaptiveConcurrencyLimiter> fallbackLimitersByCommand = new ConcurrentHashMap();		// commandKey与降级限制器的映射关系
+    private static final double BACKOFF_RATIO = 0.9D;				// AIMD乘性减小比例
+    private static final double LONG_RTT_DECAY = 0.01D;				// 长期RTT的EWMA系数(约100个样本)
+    private static final double SHORT_RTT_DECAY = 0.1D;				// 短期RTT的EWMA系数(约10个样本)
+    private static final double SMOOTHING = 0.2D;					// GRADIENT新limit的平滑系数
+
+    private final HystrixCommandExtendedProperties properties;
+    private final AtomicInteger inFlight = new AtomicInteger(0);	// 在途请求数
+    private final AtomicBoolean sampling = new AtomicBoolean(false);	// 是否有线程正在调整limit
+    private volatile int limit;										// 当前许可数
+    private double estimatedLimit;									// 未取整的limit 只由抢到sampling的线程读写
+    private volatile double longRttNanos = 0.0D;
+    private volatile double shortRttNanos = 0.0D;
+
+    HystrixAdaptiveConcurrencyLimiter(HystrixCommandExtendedProperties properties, int initialLimit) {
+        this.properties = properties;
+        this.estimatedLimit = (double)this.clamp((double)initialLimit);
+        this.limit = (int)this.estimatedLimit;
+    }
+
+    public static HystrixAdaptiveConcurrencyLimiter getExecutionInstance(HystrixCommandKey key, HystrixCommandProperties commandProperties) {
+        return getInstance(executionLimitersByCommand, key, (Integer)commandProperties.executionIsolationSemaphoreMaxConcurrentRequests().get());
+    }
+
+    public static HystrixAdaptiveConcurrencyLimiter getFallbackInstance(HystrixCommandKey key, HystrixCommandProperties commandProperties) {
+        return getInstance(fallbackLimitersByCommand, key, (Integer)commandProperties.fallbackIsolationSemaphoreMaxConcurrentRequests().get());
+    }
+
+	// 监控用 未创建过限制器(未开启自适应或者还没执行过)时返回null
+    public static HystrixAdaptiveConcurrencyLimiter getExecutionInstance(HystrixCommandKey key) {
+        return (HystrixAdaptiveConcurrencyLimiter)executionLimitersByCommand.get(key.name());
+    }
+
+    public static HystrixAdaptiveConcurrencyLimiter getFallbackInstance(HystrixCommandKey key) {
+        return (HystrixAdaptiveConcurrencyLimiter)fallbackLimitersByCommand.get(key.name());
+    }
+
+    private static HystrixAdaptiveConcurrencyLimiter getInstance(ConcurrentHashMap<String, HystrixAdaptiveConcurrencyLimiter> limiters, HystrixCommandKey key, int initialLimit) {
+        HystrixAdaptiveConcurrencyLimiter limiter = (HystrixAdaptiveConcurrencyLimiter)limiters.get(key.name());
+        if (limiter != null) {
+            return limiter;
+        } else {
+            limiters.putIfAbsent(key.name(), new HystrixAdaptiveConcurrencyLimiter(HystrixCommandExtendedProperties.getInstance(key), initialLimit));
+            return (HystrixAdaptiveConcurrencyLimiter)limiters.get(key.name());
+        }
+    }
+
+    public boolean tryAcquire() {
+        int currentCount = this.inFlight.incrementAndGet();
+        if (currentCount > this.limit) {
+            this.inFlight.decrementAndGet();
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+	// 没有RTT样本的释放(如执行前被取消) 只归还许可 不调整limit
+    public void release() {
+        this.inFlight.decrementAndGet();
+    }
+
+	// 归还许可并用本次样本调整limit
+	// dropped: 超时 拒绝等说明依赖已经过载的结果 业务异常不算
+    public void release(long rttNanos, boolean dropped) {
+        int inFlightAtCompletion = this.inFlight.getAndDecrement();
+		// 同一时刻只有一个线程调整limit 其它线程的样本直接丢弃 并发释放时同时到达的过载信号也只收缩一次
+        if (this.sampling.compareAndSet(false, true)) {
+            try {
+                this.onSample(rttNanos, inFlightAtCompletion, dropped);
+            } finally {
+                this.sampling.set(false);
+            }
+        }
+    }
+
+    private void onSample(long rttNanos, int inFlightAtCompletion, boolean dropped) {
+        double newLimit;
+        if ("GRADIENT".equalsIgnoreCase((String)this.properties.adaptiveConcurrencyAlgorithm().get())) {
+            newLimit = this.gradient(rttNanos, inFlightAtCompletion, dropped);
+        } else {
+            newLimit = this.aimd(inFlightAtCompletion, dropped);
+        }
+
+        this.estimatedLimit = this.clamp(newLimit);
+        this.limit = (int)this.estimatedLimit;
+    }
+
+    private double aimd(int inFlightAtCompletion, boolean dropped) {
+        if (dropped) {
+            return this.estimatedLimit * BACKOFF_RATIO;
+        } else {
+            return inFlightAtCompletion * 2 >= this.limit ? this.estimatedLimit + 1.0D : this.estimatedLimit;
+        }
+    }
+
+    private double gradient(long rttNanos, int inFlightAtCompletion, boolean dropped) {
+        if (dropped) {
+            return this.estimatedLimit * BACKOFF_RATIO;
+        } else {
+            double rtt = (double)rttNanos;
+            if (this.longRttNanos == 0.0D) {
+                this.longRttNanos = rtt;
+                this.shortRttNanos = rtt;
+            } else {
+                this.longRttNanos += LONG_RTT_DECAY * (rtt - this.longRttNanos);
+                this.shortRttNanos += SHORT_RTT_DECAY * (rtt - this.shortRttNanos);
+            }
+
+			// 长期RTT高于短期RTT时说明延迟在恢复 长期RTT跟着回落 避免一直按旧的高延迟放大limit
+            if (this.longRttNanos > this.shortRttNanos * 2.0D) {
+                this.longRttNanos = this.shortRttNanos * 2.0D;
+            }
+
+			// 并发没用到一半时不增加limit 没有足够的样本说明更高的并发是安全的
+            if (inFlightAtCompletion * 2 < this.limit) {
+                return this.estimatedLimit;
+            } else {
+                double gradient = Math.max(0.5D, Math.min(1.0D, this.longRttNanos / this.shortRttNanos));
+                double target = this.estimatedLimit * gradient + Math.sqrt(this.estimatedLimit);
+                return this.estimatedLimit * (1.0D - SMOOTHING) + target * SMOOTHING;
+            }
+        }
+    }
+
+    private double clamp(double value) {
+        int min = (Integer)this.properties.adaptiveConcurrencyMinLimit().get();
+        int max = (Integer)this.properties.adaptiveConcurrencyMaxLimit().get();
+        return Math.max((double)min, Math.min((double)max, value));
+    }
+
+    public int getNumberOfPermitsUsed() {
+        return this.inFlight.get();
+    }
+
+	// 当前许可数 供监控上报
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public long getShortRttInMilliseconds() {
+        return TimeUnit.NANOSECONDS.toMillis((long)this.shortRttNanos);
+    }
+
+    public long getLongRttInMilliseconds() {
+        return TimeUnit.NANOSECONDS.toMillis((long)this.longRttNanos);
+    }
+
+    static void reset() {
+        executionLimitersByCommand.clear();
+        fallbackLimitersByCommand.clear();
+    }
+}
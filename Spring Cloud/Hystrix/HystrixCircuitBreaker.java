@@ -1,9 +1,9 @@
 package com.netflix.hystrix;
 
-import com.netflix.hystrix.HystrixCommandMetrics.HealthCounts;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 // 断路器
 public interface HystrixCircuitBreaker {
@@ -13,6 +13,8 @@ public interface HystrixCircuitBreaker {
 
     void markSuccess();			// 闭合断路器
 
+    void markNonSuccess();		// 记录一次失败(失败 超时 拒绝) 计入断路器的滚动窗口
+
 	// 一个简单的不执行操作的断路器实现 就是永远不断路 永远允许请求通过
     public static class NoOpCircuitBreaker implements HystrixCircuitBreaker {
         public NoOpCircuitBreaker() {
@@ -28,25 +30,57 @@ public interface HystrixCircuitBreaker {
 
         public void markSuccess() {
         }
+
+        public void markNonSuccess() {
+        }
     }
 
     public static class HystrixCircuitBreakerImpl implements HystrixCircuitBreaker {
         private final HystrixCommandProperties properties;						// 配置属性
+        private final HystrixCommandExtendedProperties extendedProperties;		// 扩展配置 半开试探数 闭合阈值 恢复时长
         private final HystrixCommandMetrics metrics;							// 监控属性
-        private AtomicBoolean circuitOpen = new AtomicBoolean(false);			// 断路器打开标识
-        private AtomicLong circuitOpenedOrLastTestedTime = new AtomicLong();	// 断路器开启时间或者上次测试时间
+        private final AtomicReference<HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState> state = new AtomicReference(new HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState(Status.CLOSED, 0L));	// 断路器状态 每次状态变化整体替换
+        private final HystrixRollingHealthCounter health;						// 断路器自己的滚动窗口计数 窗口大小和桶数同metrics的统计窗口
 
         protected HystrixCircuitBreakerImpl(HystrixCommandKey key, HystrixCommandGroupKey commandGroup, HystrixCommandProperties properties, HystrixCommandMetrics metrics) {
             this.properties = properties;
+            this.extendedProperties = HystrixCommandExtendedProperties.getInstance(key);
             this.metrics = metrics;
+            this.health = new HystrixRollingHealthCounter((Integer)properties.metricsRollingStatisticalWindowInMilliseconds().get(), (Integer)properties.metricsRollingStatisticalWindowBuckets().get());
         }
 
+		// 半开状态下 连续成功达到阈值则闭合断路器
         public void markSuccess() {
-            if (this.circuitOpen.get() && this.circuitOpen.compareAndSet(true, false)) {
-				// 重置监控数据 
-                this.metrics.resetStream();
+            this.health.markSuccess();
+            HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState current = (HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState)this.state.get();
+            if (current.status == Status.HALF_OPEN) {
+                current.releaseProbe();
+                if (current.consecutiveProbeSuccesses.incrementAndGet() >= (Integer)this.extendedProperties.circuitBreakerHalfOpenSuccessThreshold().get() && this.state.compareAndSet(current, new HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState(Status.CLOSED, System.currentTimeMillis()))) {
+					// 重置监控数据 
+                    this.metrics.resetStream();
+                    this.health.reset();
+                }
             }
 
+        }
+
+		// 半开状态下 任何一次试探失败都重新打开断路器 并重新开始休眠窗口
+        public void markNonSuccess() {
+            this.health.markFailure();
+            HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState current = (HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState)this.state.get();
+            if (current.status == Status.HALF_OPEN) {
+                current.releaseProbe();
+                this.state.compareAndSet(current, new HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState(Status.OPEN, System.currentTimeMillis()));
+            }
+
+        }
+
+        public HystrixRollingHealthCounter.Health getHealth() {
+            return this.health.getHealth();
+        }
+
+        public Status getStatus() {
+            return ((HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState)this.state.get()).status;
         }
 
 		// 是否允许请求
@@ -59,43 +93,125 @@ public interface HystrixCircuitBreaker {
                 this.isOpen();
                 return true;
             } else {
-                return !this.isOpen() || this.allowSingleTest();
+                return !this.isOpen() ? this.allowDuringRampUp() : this.allowHalfOpenProbe();
+            }
+        }
+
+		// 是否允许试探
+		// 断路器打开并休眠一段时间(默认5s)后进入半开状态，半开状态下最多同时放行maxConcurrentProbes个试探请求(或者按probePercentage的比例放行)，
+		// 连续successThreshold次成功则关闭断路器，任何一次失败则重新打开并等待下一个休眠窗口。
+		// 试探请求如果既没成功也没失败(取消 bad request)会占着名额 半开超过一个休眠窗口仍没有结论时开始新的半开周期
+		// 试探计数属于半开状态对象 进入半开和计数清零是同一次cas 不会抹掉别的线程已经拿到的名额
+        public boolean allowHalfOpenProbe() {
+            long now = System.currentTimeMillis();
+            long sleepWindow = (long)(Integer)this.properties.circuitBreakerSleepWindowInMilliseconds().get();
+
+            while(true) {
+                HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState current = (HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState)this.state.get();
+                if (current.status == Status.CLOSED) {
+                    return true;
+                }
+
+                if (now <= current.since + sleepWindow) {
+                    return current.status == Status.HALF_OPEN && this.tryAcquireProbe(current);
+                }
+
+                HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState halfOpen = new HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState(Status.HALF_OPEN, now);
+                if (this.state.compareAndSet(current, halfOpen)) {
+                    return this.tryAcquireProbe(halfOpen);
+                }
+            }
+        }
+
+		// 配置了probePercentage时按比例放行 不限并发 否则最多同时放行maxConcurrentProbes个
+        private boolean tryAcquireProbe(HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState halfOpen) {
+            int percentage = (Integer)this.extendedProperties.circuitBreakerHalfOpenProbePercentage().get();
+            if (percentage > 0) {
+                if (ThreadLocalRandom.current().nextInt(100) >= percentage) {
+                    return false;
+                } else {
+                    halfOpen.probesInFlight.incrementAndGet();
+                    return true;
+                }
+            } else {
+                int maxProbes = (Integer)this.extendedProperties.circuitBreakerHalfOpenMaxConcurrentProbes().get();
+                int current;
+                do {
+                    current = halfOpen.probesInFlight.get();
+                    if (current >= maxProbes) {
+                        return false;
+                    }
+                } while(!halfOpen.probesInFlight.compareAndSet(current, current + 1));
+
+                return true;
             }
         }
 
-		// 是否允许测试
-		// 如果断路器打开且当前时间过了上次断路器打开时间加上窗口时间之和 则允许
-		// 作用就是在断路器打开并休眠一段时间(默认5s)，允许一些请求尝试访问, 此时断路器的半开状态，如果此时请求继续失败，路由器又进入打开状态，并且继续等待下一个休眠窗口过去之后再次尝试，
-		// 如果请求成功，则关闭断路器。
-        public boolean allowSingleTest() {
-            long timeCircuitOpenedOrWasLastTested = this.circuitOpenedOrLastTestedTime.get();
-            return this.circuitOpen.get() 
-			&& System.currentTimeMillis() > timeCircuitOpenedOrWasLastTested + (long)(Integer)this.properties.circuitBreakerSleepWindowInMilliseconds().get() 
-			&& this.circuitOpenedOrLastTestedTime.compareAndSet(timeCircuitOpenedOrWasLastTested, System.currentTimeMillis());
+		// 刚闭合的一段时间(rampUpInMilliseconds)内按比例放行 比例随时间线性增长到100% 避免恢复的依赖瞬间被打满
+        private boolean allowDuringRampUp() {
+            int rampUp = (Integer)this.extendedProperties.circuitBreakerRampUpInMilliseconds().get();
+            if (rampUp <= 0) {
+                return true;
+            } else {
+                long elapsed = System.currentTimeMillis() - ((HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState)this.state.get()).since;
+                if (elapsed >= (long)rampUp) {
+                    return true;
+                } else {
+                    return ThreadLocalRandom.current().nextInt(rampUp) <= (int)elapsed;
+                }
+            }
         }
 
-		// 断路器是否打开 
+		// 断路器是否打开 半开也算打开(只放行试探请求)
         public boolean isOpen() {
-            if (this.circuitOpen.get()) {
+            HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState current = (HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState)this.state.get();
+            if (current.status != Status.CLOSED) {
                 return true;
             } else {
-                HealthCounts health = this.metrics.getHealthCounts();
 				// 一段时间内请求数的阈值 默认10s20次
 				// 如果一段时间内的请求数未达到阈值，即使这段时间内的请求全部失败，也不会继续去判断错误百分比，不会打开断路器
-                if (health.getTotalRequests() < (long)(Integer)this.properties.circuitBreakerRequestVolumeThreshold().get()) {
-                    return false;
 				// 错误百分比默认50%
 				// 一段时间内的请求错误或者重试的次数占这段时间全部请求的数的百分比，如果超出阈值，则打开断路器
-                } else if (health.getErrorPercentage() < (Integer)this.properties.circuitBreakerErrorThresholdPercentage().get()) {
+				// 直接读断路器自己的滚动窗口 不用metrics.getHealthCounts()的快照
+                if (!this.health.isErrorThresholdExceeded((Integer)this.properties.circuitBreakerRequestVolumeThreshold().get(), (Integer)this.properties.circuitBreakerErrorThresholdPercentage().get())) {
                     return false;
-				// 打开断路器 cas设置circuitOpen值 并设置打开断路器的时间
-                } else if (this.circuitOpen.compareAndSet(false, true)) {
-                    this.circuitOpenedOrLastTestedTime.set(System.currentTimeMillis());
-                    return true;
+				// 打开断路器 cas设置状态和打开时间
                 } else {
+                    this.state.compareAndSet(current, new HystrixCircuitBreaker.HystrixCircuitBreakerImpl.CircuitState(Status.OPEN, System.currentTimeMillis()));
                     return true;
                 }
             }
+        }
+
+		// 断路器的一个状态 状态 进入时间 半开时的试探计数 不可变部分和计数一起整体cas替换
+        private static final class CircuitState {
+            private final Status status;
+            private final long since;										// 进入该状态的时间 打开/半开/闭合
+            private final AtomicInteger probesInFlight = new AtomicInteger();	// 半开状态下正在执行的试探请求数
+            private final AtomicInteger consecutiveProbeSuccesses = new AtomicInteger();	// 半开状态下连续成功次数
+
+            private CircuitState(Status status, long since) {
+                this.status = status;
+                this.since = since;
+            }
+
+            private void releaseProbe() {
+                int current;
+                do {
+                    current = this.probesInFlight.get();
+                } while(current > 0 && !this.probesInFlight.compareAndSet(current, current - 1));
+
+            }
+        }
+
+		// 断路器状态 CLOSED闭合 OPEN打开 HALF_OPEN半开(休眠窗口过后放行有限的试探请求)
+        public static enum Status {
+            CLOSED,
+            OPEN,
+            HALF_OPEN;
+
+            private Status() {
+            }
         }
     }
 
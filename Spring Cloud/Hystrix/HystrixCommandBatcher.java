@@ -0,0 +1,230 @@
+package com.netflix.hystrix;
+
+import com.netflix.hystrix.util.HystrixTimer;
+import com.netflix.hystrix.util.HystrixTimer.TimerListener;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.Subscriber;
+import rx.subjects.ReplaySubject;
+
+// 请求合并器
+// 同一个commandKey的单key请求 在一个时间窗口(timerDelayInMilliseconds)内或者攒够maxRequestsInBatch个时 合并成一次批量命令执行
+// 批量命令返回 key -> 结果 的Map 再按key分发给每个请求的Observable 同一批次内相同的key只查询一次
+// 批量命令本身仍然走完整的Hystrix语义(断路器 隔离 超时 降级) 失败时该批次的所有请求都收到同一个异常
+// 一个commandKey对应一个实例 应当作为单例使用 不再使用时调用shutdown()取消定时器
+public abstract class HystrixCommandBatcher<K, R> {
+    private static final Logger logger = LoggerFactory.getLogger(HystrixCommandBatcher.class);
+
+    private final HystrixCollapserKey collapserKey;
+    private final int maxRequestsInBatch;						// 批次最大请求数 达到后立即执行
+    private final AtomicReference<HystrixCommandBatcher.RequestBatch<K, R>> batch = new AtomicReference(new HystrixCommandBatcher.RequestBatch());
+    private final Reference<TimerListener> timerListener;		// 按时间窗口触发执行
+    private final HystrixCommandBatcher.BatchSizeHistogram batchSizeHistogram = new HystrixCommandBatcher.BatchSizeHistogram();
+
+    protected HystrixCommandBatcher(HystrixCollapserKey collapserKey, int maxRequestsInBatch, final int timerDelayInMilliseconds) {
+        if (maxRequestsInBatch <= 0 || timerDelayInMilliseconds <= 0) {
+            throw new IllegalArgumentException("maxRequestsInBatch and timerDelayInMilliseconds must be greater than 0");
+        } else {
+            this.collapserKey = collapserKey;
+            this.maxRequestsInBatch = maxRequestsInBatch;
+            this.timerListener = HystrixTimer.getInstance().addTimerListener(new TimerListener() {
+                public void tick() {
+                    HystrixCommandBatcher.this.flush();
+                }
+
+                public int getIntervalTimeInMilliseconds() {
+                    return timerDelayInMilliseconds;
+                }
+            });
+        }
+    }
+
+	// 创建批量命令 参数是本批次去重后的key 命令返回 key -> 结果 没有结果的key视为空结果(只收到onCompleted)
+    protected abstract HystrixCommand<Map<K, R>> createBatchCommand(Collection<K> keys);
+
+	// 提交单key请求 返回的Observable在批次执行完成后发出该key的结果
+    public Observable<R> observe(K key) {
+        while(true) {
+            HystrixCommandBatcher.RequestBatch<K, R> current = (HystrixCommandBatcher.RequestBatch)this.batch.get();
+            ReplaySubject<R> subject = current.offer(key, this.maxRequestsInBatch);
+            if (subject != null) {
+                if (current.isFull(this.maxRequestsInBatch)) {
+                    this.flush(current);
+                }
+
+                return subject.asObservable();
+            }
+
+			// 批次已满或已关闭 已满的批次由看到它满的线程执行 否则放入它的线程在flush前被抢先换掉批次时 这个批次永远不会执行
+            this.flush(current);
+        }
+    }
+
+	// 执行当前批次
+    public void flush() {
+        this.flush((HystrixCommandBatcher.RequestBatch)this.batch.get());
+    }
+
+    private void flush(HystrixCommandBatcher.RequestBatch<K, R> current) {
+        if (this.batch.compareAndSet(current, new HystrixCommandBatcher.RequestBatch())) {
+            final Map<K, ReplaySubject<R>> requests = current.close();
+            if (!requests.isEmpty()) {
+                this.batchSizeHistogram.record(current.getRequestCount(), requests.size());
+
+                HystrixCommand<Map<K, R>> command;
+                try {
+                    command = this.createBatchCommand(new ArrayList(requests.keySet()));
+                    command.markAsCollapsedCommand(this.collapserKey, requests.size());
+                } catch (Throwable var5) {
+                    logger.error("Exception while creating batch command for collapser " + this.collapserKey.name(), var5);
+                    this.onBatchError(requests, var5);
+                    return;
+                }
+
+                command.toObservable().subscribe(new Subscriber<Map<K, R>>() {
+                    public void onNext(Map<K, R> results) {
+                        for(Map.Entry<K, ReplaySubject<R>> request : requests.entrySet()) {
+                            R result = results.get(request.getKey());
+                            if (result != null) {
+                                ((ReplaySubject)request.getValue()).onNext(result);
+                            }
+                        }
+
+                    }
+
+                    public void onCompleted() {
+                        for(ReplaySubject<R> subject : requests.values()) {
+                            subject.onCompleted();
+                        }
+
+                    }
+
+                    public void onError(Throwable e) {
+                        HystrixCommandBatcher.this.onBatchError(requests, e);
+                    }
+                });
+            }
+        }
+    }
+
+    private void onBatchError(Map<K, ReplaySubject<R>> requests, Throwable e) {
+        for(ReplaySubject<R> subject : requests.values()) {
+            subject.onError(e);
+        }
+
+    }
+
+    public HystrixCollapserKey getCollapserKey() {
+        return this.collapserKey;
+    }
+
+	// 批次大小分布 用于监控和调整maxRequestsInBatch/timerDelayInMilliseconds
+    public HystrixCommandBatcher.BatchSizeHistogram getBatchSizeHistogram() {
+        return this.batchSizeHistogram;
+    }
+
+	// 取消定时器并执行剩余的请求
+    public void shutdown() {
+        this.timerListener.clear();
+        this.flush();
+    }
+
+	// 一个批次 收集请求时加锁 关闭后不再接受新请求
+    private static class RequestBatch<K, R> {
+        private final Map<K, ReplaySubject<R>> requests = new LinkedHashMap();
+        private int requestCount = 0;							// 合并前的请求数(含重复key)
+        private boolean closed = false;
+
+        RequestBatch() {
+        }
+
+        synchronized ReplaySubject<R> offer(K key, int maxRequestsInBatch) {
+            if (this.closed) {
+                return null;
+            } else {
+                ReplaySubject<R> subject = (ReplaySubject)this.requests.get(key);
+                if (subject == null) {
+					// 已满时只接受批次里已有的key
+                    if (this.requests.size() >= maxRequestsInBatch) {
+                        return null;
+                    }
+
+                    subject = ReplaySubject.create();
+                    this.requests.put(key, subject);
+                }
+
+                ++this.requestCount;
+                return subject;
+            }
+        }
+
+        synchronized boolean isFull(int maxRequestsInBatch) {
+            return this.requests.size() >= maxRequestsInBatch;
+        }
+
+        synchronized Map<K, ReplaySubject<R>> close() {
+            this.closed = true;
+            return this.requests;
+        }
+
+        synchronized int getRequestCount() {
+            return this.requestCount;
+        }
+    }
+
+	// 批次大小直方图 桶按2的幂划分 [1] [2,3] [4,7] ... [512,1023] [1024,+)
+    public static class BatchSizeHistogram {
+        private static final int NUMBER_OF_BUCKETS = 11;
+        private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+        private final LongAdder batches = new LongAdder();
+        private final LongAdder requests = new LongAdder();			// 合并前的请求总数
+        private final LongAdder distinctKeys = new LongAdder();		// 去重后实际查询的key总数
+
+        BatchSizeHistogram() {
+        }
+
+        void record(int requestCount, int keyCount) {
+            int bucket = Math.min(NUMBER_OF_BUCKETS - 1, 31 - Integer.numberOfLeadingZeros(Math.max(1, requestCount)));
+            this.buckets.incrementAndGet(bucket);
+            this.batches.increment();
+            this.requests.add((long)requestCount);
+            this.distinctKeys.add((long)keyCount);
+        }
+
+		// 下标i的桶计数的是大小在[2^i, 2^(i+1))之间的批次 最后一个桶不设上限
+        public long[] getBucketCounts() {
+            long[] counts = new long[NUMBER_OF_BUCKETS];
+            for(int i = 0; i < NUMBER_OF_BUCKETS; ++i) {
+                counts[i] = this.buckets.get(i);
+            }
+
+            return counts;
+        }
+
+        public long getBatchCount() {
+            return this.batches.sum();
+        }
+
+        public long getRequestCount() {
+            return this.requests.sum();
+        }
+
+        public long getDistinctKeyCount() {
+            return this.distinctKeys.sum();
+        }
+
+        public double getMeanBatchSize() {
+            long batchCount = this.batches.sum();
+            return batchCount == 0L ? 0.0D : (double)this.requests.sum() / (double)batchCount;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.netflix.hystrix;
+
+import com.netflix.hystrix.strategy.HystrixPlugins;
+import com.netflix.hystrix.strategy.properties.HystrixDynamicProperties;
+import com.netflix.hystrix.strategy.properties.HystrixDynamicProperty;
+import com.netflix.hystrix.strategy.properties.HystrixProperty;
+import java.util.concurrent.ConcurrentHashMap;
+
+// HystrixCommandProperties之外的扩展命令配置
+// 取值规则同HystrixCommandProperties: 先取 hystrix.command.<commandKey>.<name> 没有配置再取 hystrix.command.default.<name> 最后用内置默认值
+// 通过HystrixPlugins的动态配置读取 运行时修改立即生效
+public class HystrixCommandExtendedProperties {
+    private static final ConcurrentHashMap<String, HystrixCommandExtendedProperties> propertiesByCommand = new ConcurrentHashMap();	// commandKey与扩展配置的映射关系
+
+    static final int default_circuitBreakerHalfOpenMaxConcurrentProbes = 1;		// 半开状态下同时放行的试探请求数 1即原来的单个试探
+    static final int default_circuitBreakerHalfOpenProbePercentage = 0;		// 半开状态下按比例放行试探请求的百分比 0表示按maxConcurrentProbes限制并发
+    static final int default_circuitBreakerHalfOpenSuccessThreshold = 1;		// 半开状态下连续成功多少次后闭合
+    static final int default_circuitBreakerRampUpInMilliseconds = 0;			// 闭合后逐步恢复全部流量的时长 0表示立即全部放行
+    static final boolean default_executionIsolationSemaphoreAdaptiveEnabled = false;	// 执行信号量是否使用自适应并发限制
+    static final boolean default_fallbackIsolationSemaphoreAdaptiveEnabled = false;		// 降级信号量是否使用自适应并发限制
+    static final String default_adaptiveConcurrencyAlgorithm = "AIMD";					// 自适应算法 AIMD / GRADIENT
+    static final int default_adaptiveConcurrencyMinLimit = 1;							// 自适应并发下限
+    static final int default_adaptiveConcurrencyMaxLimit = 1000;						// 自适应并发上限
+    static final boolean default_executionIsolationVirtualThreadEnabled = false;		// 是否使用虚拟线程隔离 开启后忽略executionIsolationStrategy
+
+    private final HystrixProperty<Integer> circuitBreakerHalfOpenMaxConcurrentProbes;
+    private final HystrixProperty<Integer> circuitBreakerHalfOpenProbePercentage;
+    private final HystrixProperty<Integer> circuitBreakerHalfOpenSuccessThreshold;
+    private final HystrixProperty<Integer> circuitBreakerRampUpInMilliseconds;
+    private final HystrixProperty<Boolean> executionIsolationSemaphoreAdaptiveEnabled;
+    private final HystrixProperty<Boolean> fallbackIsolationSemaphoreAdaptiveEnabled;
+    private final HystrixProperty<String> adaptiveConcurrencyAlgorithm;
+    private final HystrixProperty<Integer> adaptiveConcurrencyMinLimit;
+    private final HystrixProperty<Integer> adaptiveConcurrencyMaxLimit;
+    private final HystrixProperty<Boolean> executionIsolationVirtualThreadEnabled;
+
+    protected HystrixCommandExtendedProperties(HystrixCommandKey key) {
+        this.circuitBreakerHalfOpenMaxConcurrentProbes = getProperty(key, "circuitBreaker.halfOpen.maxConcurrentProbes", default_circuitBreakerHalfOpenMaxConcurrentProbes);
+        this.circuitBreakerHalfOpenProbePercentage = getProperty(key, "circuitBreaker.halfOpen.probePercentage", default_circuitBreakerHalfOpenProbePercentage);
+        this.circuitBreakerHalfOpenSuccessThreshold = getProperty(key, "circuitBreaker.halfOpen.successThreshold", default_circuitBreakerHalfOpenSuccessThreshold);
+        this.circuitBreakerRampUpInMilliseconds = getProperty(key, "circuitBreaker.rampUpInMilliseconds", default_circuitBreakerRampUpInMilliseconds);
+        this.executionIsolationSemaphoreAdaptiveEnabled = getProperty(key, "execution.isolation.semaphore.adaptive.enabled", default_executionIsolationSemaphoreAdaptiveEnabled);
+        this.fallbackIsolationSemaphoreAdaptiveEnabled = getProperty(key, "fallback.isolation.semaphore.adaptive.enabled", default_fallbackIsolationSemaphoreAdaptiveEnabled);
+        this.adaptiveConcurrencyAlgorithm = getProperty(key, "adaptiveConcurrency.algorithm", default_adaptiveConcurrencyAlgorithm);
+        this.adaptiveConcurrencyMinLimit = getProperty(key, "adaptiveConcurrency.minLimit", default_adaptiveConcurrencyMinLimit);
+        this.adaptiveConcurrencyMaxLimit = getProperty(key, "adaptiveConcurrency.maxLimit", default_adaptiveConcurrencyMaxLimit);
+        this.executionIsolationVirtualThreadEnabled = getProperty(key, "execution.isolation.virtualThread.enabled", default_executionIsolationVirtualThreadEnabled);
+    }
+
+    public static HystrixCommandExtendedProperties getInstance(HystrixCommandKey key) {
+        HystrixCommandExtendedProperties properties = (HystrixCommandExtendedProperties)propertiesByCommand.get(key.name());
+        if (properties != null) {
+            return properties;
+        } else {
+            propertiesByCommand.putIfAbsent(key.name(), new HystrixCommandExtendedProperties(key));
+            return (HystrixCommandExtendedProperties)propertiesByCommand.get(key.name());
+        }
+    }
+
+    public HystrixProperty<Integer> circuitBreakerHalfOpenMaxConcurrentProbes() {
+        return this.circuitBreakerHalfOpenMaxConcurrentProbes;
+    }
+
+    public HystrixProperty<Integer> circuitBreakerHalfOpenProbePercentage() {
+        return this.circuitBreakerHalfOpenProbePercentage;
+    }
+
+    public HystrixProperty<Integer> circuitBreakerHalfOpenSuccessThreshold() {
+        return this.circuitBreakerHalfOpenSuccessThreshold;
+    }
+
+    public HystrixProperty<Integer> circuitBreakerRampUpInMilliseconds() {
+        return this.circuitBreakerRampUpInMilliseconds;
+    }
+
+    public HystrixProperty<Boolean> executionIsolationSemaphoreAdaptiveEnabled() {
+        return this.executionIsolationSemaphoreAdaptiveEnabled;
+    }
+
+    public HystrixProperty<Boolean> fallbackIsolationSemaphoreAdaptiveEnabled() {
+        return this.fallbackIsolationSemaphoreAdaptiveEnabled;
+    }
+
+    public HystrixProperty<String> adaptiveConcurrencyAlgorithm() {
+        return this.adaptiveConcurrencyAlgorithm;
+    }
+
+    public HystrixProperty<Integer> adaptiveConcurrencyMinLimit() {
+        return this.adaptiveConcurrencyMinLimit;
+    }
+
+    public HystrixProperty<Integer> adaptiveConcurrencyMaxLimit() {
+        return this.adaptiveConcurrencyMaxLimit;
+    }
+
+    public HystrixProperty<Boolean> executionIsolationVirtualThreadEnabled() {
+        return this.executionIsolationVirtualThreadEnabled;
+    }
+
+    private static HystrixProperty<Integer> getProperty(HystrixCommandKey key, String name, Integer defaultValue) {
+        HystrixDynamicProperties dynamicProperties = HystrixPlugins.getInstance().getDynamicProperties();
+        return chained(dynamicProperties.getInteger(instanceName(key, name), (Integer)null), dynamicProperties.getInteger(defaultName(name), defaultValue));
+    }
+
+    private static HystrixProperty<Boolean> getProperty(HystrixCommandKey key, String name, Boolean defaultValue) {
+        HystrixDynamicProperties dynamicProperties = HystrixPlugins.getInstance().getDynamicProperties();
+        return chained(dynamicProperties.getBoolean(instanceName(key, name), (Boolean)null), dynamicProperties.getBoolean(defaultName(name), defaultValue));
+    }
+
+    private static HystrixProperty<String> getProperty(HystrixCommandKey key, String name, String defaultValue) {
+        HystrixDynamicProperties dynamicProperties = HystrixPlugins.getInstance().getDynamicProperties();
+        return chained(dynamicProperties.getString(instanceName(key, name), (String)null), dynamicProperties.getString(defaultName(name), defaultValue));
+    }
+
+    private static String instanceName(HystrixCommandKey key, String name) {
+        return "hystrix.command." + key.name() + "." + name;
+    }
+
+    private static String defaultName(String name) {
+        return "hystrix.command.default." + name;
+    }
+
+	// 命令级配置优先 没有再取default配置
+    private static <T> HystrixProperty<T> chained(final HystrixDynamicProperty<T> instanceProperty, final HystrixDynamicProperty<T> defaultProperty) {
+        return new HystrixProperty<T>() {
+            public T get() {
+                T value = instanceProperty.get();
+                return value != null ? value : defaultProperty.get();
+            }
+        };
+    }
+
+    static void reset() {
+        propertiesByCommand.clear();
+    }
+}
@@ -0,0 +1,128 @@
+package com.netflix.hystrix;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// 断路器专用的滚动窗口健康计数器
+// 窗口被切成固定个数的桶 环形复用 每个桶的成功/失败数用LongAdder(分段cell) 高并发下写入不竞争同一个变量
+// 桶按 时间/桶长 得到的序号(epoch)定位 序号变化时CAS抢占重置 窗口滚动是O(1)的 记录请求不分配对象
+// 断路器直接读这里的计数判断错误百分比 不依赖HystrixCommandMetrics的异步快照
+public class HystrixRollingHealthCounter {
+    private final int numberOfBuckets;						// 桶个数
+    private final long bucketSizeInMillis;					// 每个桶的时间长度
+    private final AtomicLongArray bucketEpochs;				// 每个桶当前归属的序号
+    private final LongAdder[] successes;					// 每个桶的成功数
+    private final LongAdder[] failures;						// 每个桶的失败数(失败 超时 线程池拒绝 信号量拒绝)
+
+    public HystrixRollingHealthCounter(int windowInMillis, int numberOfBuckets) {
+        if (numberOfBuckets <= 0 || windowInMillis % numberOfBuckets != 0) {
+            throw new IllegalArgumentException("The timeInMilliseconds must divide equally into numberOfBuckets. For example 1000/10 is ok, 1000/11 is not.");
+        } else {
+            this.numberOfBuckets = numberOfBuckets;
+            this.bucketSizeInMillis = (long)(windowInMillis / numberOfBuckets);
+            this.bucketEpochs = new AtomicLongArray(numberOfBuckets);
+            this.successes = new LongAdder[numberOfBuckets];
+            this.failures = new LongAdder[numberOfBuckets];
+
+            for(int i = 0; i < numberOfBuckets; ++i) {
+                this.bucketEpochs.set(i, -1L);
+                this.successes[i] = new LongAdder();
+                this.failures[i] = new LongAdder();
+            }
+
+        }
+    }
+
+    public void markSuccess() {
+        this.successes[this.currentBucket(System.currentTimeMillis())].increment();
+    }
+
+    public void markFailure() {
+        this.failures[this.currentBucket(System.currentTimeMillis())].increment();
+    }
+
+	// 定位当前桶 桶属于已过期的序号时先重置
+	// 抢到CAS的线程负责清零 其他线程直接写入 清零前后的少量计数误差对百分比判断没有影响
+    private int currentBucket(long now) {
+        long epoch = now / this.bucketSizeInMillis;
+        int index = (int)(epoch % (long)this.numberOfBuckets);
+        long bucketEpoch = this.bucketEpochs.get(index);
+        if (bucketEpoch < epoch && this.bucketEpochs.compareAndSet(index, bucketEpoch, epoch)) {
+            this.successes[index].reset();
+            this.failures[index].reset();
+        }
+
+        return index;
+    }
+
+	// 断路器判断用 窗口内请求数达到阈值且错误百分比达到阈值 直接汇总不创建Health对象
+    public boolean isErrorThresholdExceeded(int requestVolumeThreshold, int errorThresholdPercentage) {
+        long currentEpoch = System.currentTimeMillis() / this.bucketSizeInMillis;
+        long success = 0L;
+        long failure = 0L;
+
+        for(int i = 0; i < this.numberOfBuckets; ++i) {
+            long bucketEpoch = this.bucketEpochs.get(i);
+            if (bucketEpoch > currentEpoch - (long)this.numberOfBuckets && bucketEpoch <= currentEpoch) {
+                success += this.successes[i].sum();
+                failure += this.failures[i].sum();
+            }
+        }
+
+        long total = success + failure;
+        return total >= (long)requestVolumeThreshold && total > 0L && failure * 100L >= (long)errorThresholdPercentage * total;
+    }
+
+	// 汇总窗口内(最近numberOfBuckets个序号)的计数
+    public HystrixRollingHealthCounter.Health getHealth() {
+        long currentEpoch = System.currentTimeMillis() / this.bucketSizeInMillis;
+        long success = 0L;
+        long failure = 0L;
+
+        for(int i = 0; i < this.numberOfBuckets; ++i) {
+            long bucketEpoch = this.bucketEpochs.get(i);
+            if (bucketEpoch > currentEpoch - (long)this.numberOfBuckets && bucketEpoch <= currentEpoch) {
+                success += this.successes[i].sum();
+                failure += this.failures[i].sum();
+            }
+        }
+
+        return new HystrixRollingHealthCounter.Health(success + failure, failure);
+    }
+
+	// 断路器闭合时清空窗口
+    public void reset() {
+        for(int i = 0; i < this.numberOfBuckets; ++i) {
+            this.bucketEpochs.set(i, -1L);
+            this.successes[i].reset();
+            this.failures[i].reset();
+        }
+
+    }
+
+    public static class Health {
+        private final long totalRequests;
+        private final long errorCount;
+
+        Health(long totalRequests, long errorCount) {
+            this.totalRequests = totalRequests;
+            this.errorCount = errorCount;
+        }
+
+        public long getTotalRequests() {
+            return this.totalRequests;
+        }
+
+        public long getErrorCount() {
+            return this.errorCount;
+        }
+
+        public int getErrorPercentage() {
+            return this.totalRequests > 0L ? (int)((double)this.errorCount / (double)this.totalRequests * 100.0D) : 0;
+        }
+
+        public String toString() {
+            return "Health[" + this.totalRequests + " : " + this.errorCount + " : " + this.getErrorPercentage() + "%]";
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.springframework.jdbc.datasource.lookup;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.springframework.jdbc.datasource.ConnectionProxy;
+import org.springframework.lang.Nullable;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+
+// 读写分离数据源
+// 只读事务(TransactionSynchronizationManager.isCurrentTransactionReadOnly)路由到从库 其余全部走主库
+// 【注意】DataSourceTransactionManager在doBegin时就获取连接 此时只读标识还没设置(prepareSynchronization在doBegin之后)
+//        所以事务管理器要使用 LazyConnectionDataSourceProxy 包装本数据源 延迟到第一条语句执行时才获取连接
+public class ReadWriteRoutingDataSource extends AbstractRoutingDataSource {
+    private static final String PRIMARY_KEY = "primary";
+    private static final String REPLICA_KEY_PREFIX = "replica-";
+
+    @Nullable
+    private Object primaryDataSource;											// 主库
+    private List<Object> replicaDataSources = new ArrayList();					// 从库
+    private ReplicaSelectionStrategy selectionStrategy = ReplicaSelectionStrategy.LEAST_OUTSTANDING;
+    private int failureThreshold = 3;											// 连续获取连接失败多少次后摘除从库
+    private long ejectionMillis = 30000L;										// 摘除时长 到期后重新参与选择
+    private double latencyDecay = 0.2D;											// 延迟EWMA的平滑系数
+    private Replica[] replicas = new Replica[0];
+
+    public ReadWriteRoutingDataSource() {
+    }
+
+    public void setPrimaryDataSource(Object primaryDataSource) {
+        this.primaryDataSource = primaryDataSource;
+    }
+
+    public void setReplicaDataSources(List<Object> replicaDataSources) {
+        this.replicaDataSources = replicaDataSources;
+    }
+
+    public void setSelectionStrategy(ReplicaSelectionStrategy selectionStrategy) {
+        Assert.notNull(selectionStrategy, "ReplicaSelectionStrategy must not be null");
+        this.selectionStrategy = selectionStrategy;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        Assert.isTrue(failureThreshold > 0, "'failureThreshold' must be greater than 0");
+        this.failureThreshold = failureThreshold;
+    }
+
+    public void setEjectionMillis(long ejectionMillis) {
+        this.ejectionMillis = ejectionMillis;
+    }
+
+    public void setLatencyDecay(double latencyDecay) {
+        Assert.isTrue(latencyDecay > 0.0D && latencyDecay <= 1.0D, "'latencyDecay' must be in (0, 1]");
+        this.latencyDecay = latencyDecay;
+    }
+
+	// 主从数据源注册为父类的目标数据源 由父类统一解析(支持DataSource实例和JNDI名称)
+    public void afterPropertiesSet() {
+        if(this.primaryDataSource == null) {
+            throw new IllegalArgumentException("Property 'primaryDataSource' is required");
+        } else {
+            Map<Object, Object> targetDataSources = new HashMap(this.replicaDataSources.size() + 1);
+            targetDataSources.put(PRIMARY_KEY, this.primaryDataSource);
+            for(int i = 0; i < this.replicaDataSources.size(); ++i) {
+                targetDataSources.put(REPLICA_KEY_PREFIX + i, this.replicaDataSources.get(i));
+            }
+
+            this.setTargetDataSources(targetDataSources);
+            this.setDefaultTargetDataSource(this.primaryDataSource);
+            super.afterPropertiesSet();
+
+            Map<Object, DataSource> resolved = this.getResolvedDataSources();
+            Replica[] replicas = new Replica[this.replicaDataSources.size()];
+            for(int i = 0; i < replicas.length; ++i) {
+                replicas[i] = new Replica(REPLICA_KEY_PREFIX + i, resolved.get(REPLICA_KEY_PREFIX + i));
+            }
+
+            this.replicas = replicas;
+        }
+    }
+
+	// 路由键 只读事务走从库 没有可用从库时降级到主库
+    @Nullable
+    protected Object determineCurrentLookupKey() {
+        if(TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            Replica replica = this.selectReplica();
+            if(replica != null) {
+                return replica.key;
+            }
+        }
+
+        return PRIMARY_KEY;
+    }
+
+    public Connection getConnection() throws SQLException {
+        return this.getConnection(null, null, false);
+    }
+
+    public Connection getConnection(String username, String password) throws SQLException {
+        return this.getConnection(username, password, true);
+    }
+
+	// 从库连接单独统计 在途数(借出未归还的连接数) 获取连接延迟 连续失败次数
+    private Connection getConnection(@Nullable String username, @Nullable String password, boolean withCredentials) throws SQLException {
+        Replica replica = TransactionSynchronizationManager.isCurrentTransactionReadOnly() ? this.selectReplica() : null;
+        if(replica == null) {
+            DataSource primary = this.getResolvedDefaultDataSource();
+            Assert.state(primary != null, "DataSource router not initialized");
+            return withCredentials ? primary.getConnection(username, password) : primary.getConnection();
+        } else {
+            replica.outstanding.incrementAndGet();
+            long start = System.nanoTime();
+            Connection con;
+            try {
+                con = withCredentials ? replica.dataSource.getConnection(username, password) : replica.dataSource.getConnection();
+            } catch (SQLException | RuntimeException var9) {
+                replica.outstanding.decrementAndGet();
+                replica.onFailure(this.failureThreshold, this.ejectionMillis);
+                throw var9;
+            }
+
+            replica.onSuccess(System.nanoTime() - start, this.latencyDecay);
+            return (Connection)Proxy.newProxyInstance(ConnectionProxy.class.getClassLoader(), new Class[]{ConnectionProxy.class}, new ReplicaConnectionInvocationHandler(con, replica));
+        }
+    }
+
+	// 无锁选择从库 power of two choices 随机取两个健康从库比较 负载更低的胜出
+    @Nullable
+    protected Replica selectReplica() {
+        Replica[] replicas = this.replicas;
+        int size = replicas.length;
+        if(size == 0) {
+            return null;
+        } else {
+            long now = System.currentTimeMillis();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int start = random.nextInt(size);
+            Replica first = null;
+            Replica second = null;
+
+            for(int i = 0; i < size && second == null; ++i) {
+                Replica candidate = replicas[(start + i) % size];
+                if(candidate.isAvailable(now)) {
+                    if(first == null) {
+                        first = candidate;
+                    } else {
+                        second = candidate;
+                    }
+                }
+            }
+
+            if(second == null) {
+                return first;
+            } else {
+                return this.selectionStrategy.score(second) < this.selectionStrategy.score(first) ? second : first;
+            }
+        }
+    }
+
+    public Replica[] getReplicas() {
+        return this.replicas.clone();
+    }
+
+	// 从库选择策略 分值越低越优先
+    public enum ReplicaSelectionStrategy {
+        LEAST_OUTSTANDING {											// 在途请求最少
+            double score(Replica replica) {
+                return (double)replica.getOutstanding();
+            }
+        },
+        LATENCY_WEIGHTED {											// 延迟 * (在途 + 1) 延迟相同时退化成最少在途
+            double score(Replica replica) {
+                return (double)replica.getLatencyNanos() * (double)(replica.getOutstanding() + 1);
+            }
+        };
+
+        abstract double score(Replica replica);
+    }
+
+	// 从库状态 所有字段都是原子变量 选择路径不加锁
+    public static class Replica {
+        private final String key;
+        private final DataSource dataSource;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicLong latencyNanos = new AtomicLong();		// 获取连接延迟EWMA
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long ejectedUntil = 0L;
+
+        Replica(String key, DataSource dataSource) {
+            this.key = key;
+            this.dataSource = dataSource;
+        }
+
+        boolean isAvailable(long now) {
+            return this.ejectedUntil <= now;
+        }
+
+        void onSuccess(long elapsedNanos, double decay) {
+            this.consecutiveFailures.set(0);
+            long current;
+            long next;
+            do {
+                current = this.latencyNanos.get();
+                next = current == 0L ? elapsedNanos : (long)((double)current + decay * (double)(elapsedNanos - current));
+            } while(!this.latencyNanos.compareAndSet(current, next));
+
+        }
+
+        void onFailure(int failureThreshold, long ejectionMillis) {
+            if(this.consecutiveFailures.incrementAndGet() >= failureThreshold) {
+                this.consecutiveFailures.set(0);
+                this.ejectedUntil = System.currentTimeMillis() + ejectionMillis;
+            }
+
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+
+        public int getOutstanding() {
+            return this.outstanding.get();
+        }
+
+        public long getLatencyNanos() {
+            return this.latencyNanos.get();
+        }
+
+        public boolean isEjected() {
+            return !this.isAvailable(System.currentTimeMillis());
+        }
+
+        public String toString() {
+            return this.key + "[outstanding=" + this.getOutstanding() + ", latencyNanos=" + this.getLatencyNanos() + ", ejected=" + this.isEjected() + "]";
+        }
+    }
+
+	// 从库连接代理 连接关闭时在途数减一
+    private static class ReplicaConnectionInvocationHandler implements InvocationHandler {
+        private final Connection target;
+        private final Replica replica;
+        private boolean closed = false;
+
+        public ReplicaConnectionInvocationHandler(Connection target, Replica replica) {
+            this.target = target;
+            this.replica = replica;
+        }
+
+        @Nullable
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if(name.equals("equals")) {
+                return proxy == args[0];
+            } else if(name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if(name.equals("getTargetConnection")) {
+                return this.target;
+            } else if(name.equals("unwrap") && ((Class)args[0]).isInstance(proxy)) {
+                return proxy;
+            } else if(name.equals("isWrapperFor") && ((Class)args[0]).isInstance(proxy)) {
+                return true;
+            } else {
+                if(name.equals("close") && !this.closed) {
+                    this.closed = true;
+                    this.replica.outstanding.decrementAndGet();
+                }
+
+                try {
+                    return method.invoke(this.target, args);
+                } catch (InvocationTargetException var6) {
+                    throw var6.getTargetException();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.gb.soa.omp.cpromotion.util;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.core.convert.ConversionService;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.StringUtils;
+
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * 基于MethodHandle的javabean行映射器
+ *      BeanPropertyRowMapper每行每列都要通过BeanWrapper反射查找属性并做类型转换
+ *      这里在第一次映射时按结果集列解析出 列 -> setter 的映射计划, 之后每行只按计划调用MethodHandle
+ *      基本类型属性使用 getInt/getLong... + invokeExact 直接设置 不装箱
+ * 列名匹配规则同BeanPropertyRowMapper: 属性名忽略大小写 或 驼峰转下划线
+ * 取出的值和属性类型不一致时(如字符串列映射到枚举属性) 同BeanPropertyRowMapper用ConversionService转换
+ * 由MyJdbcTemplate2按 (sql, beanType) 缓存, 每个结果集的第一行校验列数和列名 列结构变化(如ALTER TABLE后的SELECT *)时重新解析
+ * @param <T>
+ */
+public class MethodHandleBeanRowMapper<T> implements RowMapper<T> {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final Class<T> mappedClass;
+
+    private final MethodHandle constructor;                         // ()Object
+
+    private final Map<String, PropertyDescriptor> mappedFields;     // 小写属性名/下划线名 -> 属性
+
+    @Nullable
+    private ConversionService conversionService = DefaultConversionService.getSharedInstance();
+
+    private volatile MappingPlan plan;
+
+    public MethodHandleBeanRowMapper(Class<T> mappedClass) {
+        Assert.notNull(mappedClass, "Mapped class must not be null");
+        this.mappedClass = mappedClass;
+        try {
+            // 和BeanUtils.instantiateClass一样 非public的无参构造也可以用
+            Constructor<T> ctor = ReflectionUtils.accessibleConstructor(mappedClass);
+            this.constructor = LOOKUP.unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new InvalidDataAccessApiUsageException("Mapped class [" + mappedClass.getName() + "] needs a no-arg constructor", ex);
+        }
+        this.mappedFields = new HashMap<>();
+        for (PropertyDescriptor pd : BeanUtils.getPropertyDescriptors(mappedClass)) {
+            if (pd.getWriteMethod() != null) {
+                this.mappedFields.put(lowerCaseName(pd.getName()), pd);
+                String underscoredName = underscoreName(pd.getName());
+                if (!lowerCaseName(pd.getName()).equals(underscoredName)) {
+                    this.mappedFields.put(underscoredName, pd);
+                }
+            }
+        }
+    }
+
+    public Class<T> getMappedClass() {
+        return this.mappedClass;
+    }
+
+    /**
+     * 值类型和属性类型不一致时使用的转换服务 默认DefaultConversionService 设为null时不转换
+     */
+    public void setConversionService(@Nullable ConversionService conversionService) {
+        this.conversionService = conversionService;
+    }
+
+    @Nullable
+    public ConversionService getConversionService() {
+        return this.conversionService;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T mapRow(ResultSet rs, int rowNumber) throws SQLException {
+        MappingPlan current = this.plan;
+        // 每个结果集只在第一行校验一次列结构
+        if (current == null || (rowNumber == 0 && !current.matches(rs.getMetaData()))) {
+            current = this.resolvePlan(rs.getMetaData());
+            this.plan = current;
+        }
+
+        ColumnSetter[] setters = current.setters;
+        try {
+            Object bean = this.constructor.invokeExact();
+            for (int i = 0; i < setters.length; i++) {
+                if (setters[i] != null) {
+                    setters[i].set(bean, rs, i + 1);
+                }
+            }
+            return (T) bean;
+        } catch (SQLException | RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException("Failed to map row " + rowNumber + " to " + this.mappedClass.getName(), ex);
+        }
+    }
+
+    // 按结果集元数据解析 列 -> setter 映射计划
+    private MappingPlan resolvePlan(ResultSetMetaData rsmd) throws SQLException {
+        int columnCount = rsmd.getColumnCount();
+        String[] columns = new String[columnCount];
+        ColumnSetter[] setters = new ColumnSetter[columnCount];
+        for (int index = 1; index <= columnCount; index++) {
+            String column = JdbcUtils.lookupColumnName(rsmd, index);
+            columns[index - 1] = column;
+            String field = lowerCaseName(StringUtils.delete(column, " "));
+            PropertyDescriptor pd = this.mappedFields.get(field);
+            if (pd != null) {
+                setters[index - 1] = this.columnSetter(pd.getWriteMethod(), pd.getPropertyType());
+            }
+        }
+        return new MappingPlan(columns, setters);
+    }
+
+    private ColumnSetter columnSetter(Method writeMethod, Class<?> type) {
+        MethodHandle handle;
+        try {
+            // 非public类的public setter也需要先setAccessible 和BeanWrapper一致
+            ReflectionUtils.makeAccessible(writeMethod);
+            handle = LOOKUP.unreflect(writeMethod);
+        } catch (IllegalAccessException ex) {
+            throw new InvalidDataAccessApiUsageException("Setter [" + writeMethod + "] is not accessible", ex);
+        }
+        // 统一成 (Object, 属性类型)void 以便invokeExact 基本类型保持原始类型不装箱
+        MethodHandle setter = handle.asType(MethodType.methodType(void.class, Object.class, type.isPrimitive() ? type : Object.class));
+        if (type == int.class) {
+            return (bean, rs, index) -> {
+                int value = rs.getInt(index);
+                if (value != 0 || !rs.wasNull()) {
+                    setter.invokeExact(bean, value);
+                }
+            };
+        } else if (type == long.class) {
+            return (bean, rs, index) -> {
+                long value = rs.getLong(index);
+                if (value != 0L || !rs.wasNull()) {
+                    setter.invokeExact(bean, value);
+                }
+            };
+        } else if (type == double.class) {
+            return (bean, rs, index) -> {
+                double value = rs.getDouble(index);
+                if (value != 0D || !rs.wasNull()) {
+                    setter.invokeExact(bean, value);
+                }
+            };
+        } else if (type == float.class) {
+            return (bean, rs, index) -> {
+                float value = rs.getFloat(index);
+                if (value != 0F || !rs.wasNull()) {
+                    setter.invokeExact(bean, value);
+                }
+            };
+        } else if (type == boolean.class) {
+            return (bean, rs, index) -> {
+                boolean value = rs.getBoolean(index);
+                if (value || !rs.wasNull()) {
+                    setter.invokeExact(bean, value);
+                }
+            };
+        } else if (type == short.class) {
+            return (bean, rs, index) -> {
+                short value = rs.getShort(index);
+                if (value != 0 || !rs.wasNull()) {
+                    setter.invokeExact(bean, value);
+                }
+            };
+        } else if (type == byte.class) {
+            return (bean, rs, index) -> {
+                byte value = rs.getByte(index);
+                if (value != 0 || !rs.wasNull()) {
+                    setter.invokeExact(bean, value);
+                }
+            };
+        } else if (type == char.class) {
+            throw new InvalidDataAccessApiUsageException("char property is not supported by " + MethodHandleBeanRowMapper.class.getSimpleName() + ": " + writeMethod);
+        } else if (type == String.class) {
+            return (bean, rs, index) -> setter.invokeExact(bean, (Object) rs.getString(index));
+        } else {
+            // 包装类型/日期/BigDecimal/枚举等 取值规则同BeanPropertyRowMapper 取出的值类型不符时再转换
+            return (bean, rs, index) -> setter.invokeExact(bean, this.convertIfNecessary(JdbcUtils.getResultSetValue(rs, index, type), type, writeMethod));
+        }
+    }
+
+    @Nullable
+    private Object convertIfNecessary(@Nullable Object value, Class<?> type, Method writeMethod) {
+        if (value == null || ClassUtils.isAssignableValue(type, value)) {
+            return value;
+        }
+        ConversionService conversionService = this.conversionService;
+        if (conversionService == null || !conversionService.canConvert(value.getClass(), type)) {
+            throw new InvalidDataAccessApiUsageException("Cannot convert value of type [" + value.getClass().getName() + "] to [" + type.getName() + "] for setter " + writeMethod);
+        }
+        return conversionService.convert(value, type);
+    }
+
+    private static String lowerCaseName(String name) {
+        return name.toLowerCase(Locale.US);
+    }
+
+    // userName -> user_name
+    private static String underscoreName(String name) {
+        if (!StringUtils.hasLength(name)) {
+            return "";
+        }
+        StringBuilder result = new StringBuilder();
+        result.append(lowerCaseName(name.substring(0, 1)));
+        for (int i = 1; i < name.length(); i++) {
+            String s = name.substring(i, i + 1);
+            String slc = lowerCaseName(s);
+            if (!s.equals(slc)) {
+                result.append("_").append(slc);
+            } else {
+                result.append(s);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * 映射计划 按列下标的设置器 null表示该列不映射
+     */
+    private static class MappingPlan {
+        private final String[] columns;
+        private final ColumnSetter[] setters;
+
+        MappingPlan(String[] columns, ColumnSetter[] setters) {
+            this.columns = columns;
+            this.setters = setters;
+        }
+
+        boolean matches(ResultSetMetaData rsmd) throws SQLException {
+            if (rsmd.getColumnCount() != this.columns.length) {
+                return false;
+            }
+            for (int index = 1; index <= this.columns.length; index++) {
+                if (!this.columns[index - 1].equals(JdbcUtils.lookupColumnName(rsmd, index))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 单列设置器
+     */
+    @FunctionalInterface
+    interface ColumnSetter {
+        void set(Object bean, ResultSet rs, int index) throws Throwable;
+    }
+
+}
@@ -2,15 +2,32 @@ package com.gb.soa.omp.cpromotion.util;
 
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
-import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.RowMapperResultSetExtractor;
+import org.springframework.jdbc.core.SqlParameterValue;
+import org.springframework.jdbc.core.SqlTypeValue;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.jdbc.support.JdbcUtils;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.lang.Nullable;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 
 /**
@@ -18,7 +35,21 @@ import java.util.Map;
  */
 public class MyJdbcTemplate2 extends JdbcTemplate {
 
-    private String dbAnnotatePrefix = "";
+    private static final int BEAN_ROW_MAPPER_CACHE_LIMIT = 256;
+
+    private volatile String dbAnnotatePrefix = "";
+
+    private volatile int sqlCacheLimit = 0;                             // 改写后SQL缓存上限 0表示不缓存
+
+    // 原始SQL -> 加前缀后的SQL 按访问顺序的LRU 读写都要锁住map 前缀变更或清空时整体替换
+    private volatile Map<String, String> rewrittenSqlCache = this.newRewrittenSqlCache();
+
+    // beanType -> (sql -> 已解析映射计划的行映射器)
+    private final ConcurrentMap<Class<?>, ConcurrentMap<String, MethodHandleBeanRowMapper<?>>> beanRowMapperCache = new ConcurrentHashMap<>();
+
+    private final LongAdder sqlCacheHits = new LongAdder();
+    private final LongAdder sqlCacheMisses = new LongAdder();
+    private final LongAdder sqlCacheEvictions = new LongAdder();
 
     public MyJdbcTemplate2() {
     }
@@ -28,11 +59,74 @@ public class MyJdbcTemplate2 extends JdbcTemplate {
     }
 
     public void setDbAnnotatePrefix(String dbAnnotatePrefix) {
+        // 先改前缀再换缓存 replaceSql先读缓存再读前缀 拿到新缓存时一定能看到新前缀
         this.dbAnnotatePrefix = dbAnnotatePrefix;
+        this.rewrittenSqlCache = this.newRewrittenSqlCache();
+    }
+
+    private Map<String, String> newRewrittenSqlCache() {
+        return new LinkedHashMap<String, String>(16, 0.75F, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (this.size() > MyJdbcTemplate2.this.sqlCacheLimit) {
+                    MyJdbcTemplate2.this.sqlCacheEvictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public int getSqlCacheLimit() {
+        return this.sqlCacheLimit;
+    }
+
+    /**
+     * 改写后SQL的缓存上限(默认0 不缓存) 超过上限时淘汰最久未使用的SQL 淘汰次数见getSqlCacheEvictions
+     *      预编译语句的缓存交给驱动或连接池(如MySQL驱动的cachePrepStmts、Druid的poolPreparedStatements)
+     */
+    public void setSqlCacheLimit(int sqlCacheLimit) {
+        this.sqlCacheLimit = sqlCacheLimit;
+        this.rewrittenSqlCache = this.newRewrittenSqlCache();
     }
 
     public String replaceSql(String sql) {
-        return this.dbAnnotatePrefix + sql;
+        if (this.sqlCacheLimit <= 0) {
+            return this.dbAnnotatePrefix + sql;
+        }
+        Map<String, String> cache = this.rewrittenSqlCache;
+        String rewritten;
+        synchronized (cache) {
+            rewritten = cache.get(sql);
+        }
+        if (rewritten != null) {
+            this.sqlCacheHits.increment();
+            return rewritten;
+        }
+        this.sqlCacheMisses.increment();
+        rewritten = this.dbAnnotatePrefix + sql;
+        synchronized (cache) {
+            cache.put(sql, rewritten);
+        }
+        return rewritten;
+    }
+
+    public long getSqlCacheHits() {
+        return this.sqlCacheHits.sum();
+    }
+
+    public long getSqlCacheMisses() {
+        return this.sqlCacheMisses.sum();
+    }
+
+    public long getSqlCacheEvictions() {
+        return this.sqlCacheEvictions.sum();
+    }
+
+    /**
+     * 清空SQL缓存
+     */
+    public void clearCaches() {
+        this.rewrittenSqlCache = this.newRewrittenSqlCache();
     }
 
     /**
@@ -90,7 +184,25 @@ public class MyJdbcTemplate2 extends JdbcTemplate {
      */
     public <T> List<T> queryForBean(String sql, Object[] args, Class<T> beanType) throws DataAccessException {
         sql = this.replaceSql(sql);
-        return super.query(sql, args, new BeanPropertyRowMapper<>(beanType));
+        return super.query(sql, args, this.getBeanRowMapper(sql, beanType));
+    }
+
+    /**
+     * 获取javabean行映射器 按 (sql, beanType) 缓存 映射计划在第一次查询时解析 列结构变化时重新解析
+     *      每种beanType最多缓存BEAN_ROW_MAPPER_CACHE_LIMIT条SQL 超出后不再缓存(拼接的动态SQL)
+     */
+    @SuppressWarnings("unchecked")
+    protected <T> RowMapper<T> getBeanRowMapper(String sql, Class<T> beanType) {
+        ConcurrentMap<String, MethodHandleBeanRowMapper<?>> mappers =
+                this.beanRowMapperCache.computeIfAbsent(beanType, key -> new ConcurrentHashMap<>());
+        MethodHandleBeanRowMapper<?> rowMapper = mappers.get(sql);
+        if (rowMapper == null) {
+            if (mappers.size() >= BEAN_ROW_MAPPER_CACHE_LIMIT) {
+                return new MethodHandleBeanRowMapper<>(beanType);
+            }
+            rowMapper = mappers.computeIfAbsent(sql, key -> new MethodHandleBeanRowMapper<>(beanType));
+        }
+        return (RowMapper<T>) rowMapper;
     }
 
     /**
@@ -161,6 +273,323 @@ public class MyJdbcTemplate2 extends JdbcTemplate {
         return super.batchUpdate(sql, batchArgs);
     }
 
+    /**
+     * 流式分块批量更新(不一次性持有全部参数)
+     *      每chunkSize行执行一次executeBatch, 不在事务中时每块提交一次
+     * @param sql           sql
+     * @param batchArgs     参数流 执行完成后关闭
+     * @param chunkSize     每块行数
+     * @return 总影响行数
+     * @throws DataAccessException
+     */
+    public long batchUpdate(String sql, Stream<Object[]> batchArgs, int chunkSize) throws DataAccessException {
+        try (Stream<Object[]> args = batchArgs) {
+            return this.batchUpdate(sql, args.iterator(), chunkSize, false, null);
+        }
+    }
+
+    /**
+     * 流式分块批量更新(不一次性持有全部参数)
+     *      每chunkSize行执行一次 不在事务中时每块提交一次 在事务中时只分块执行 由外层事务统一提交
+     * @param sql                   sql
+     * @param batchArgs             参数迭代器
+     * @param chunkSize             每块行数
+     * @param rewriteMultiValues    是否将 INSERT ... VALUES (?,?) 改写为 INSERT ... VALUES (?,?),(?,?)... 每块一次往返
+     *                              元组之后还有子句(ON DUPLICATE KEY UPDATE、RETURNING等)或不是INSERT时按普通批量执行
+     * @param callback              每块执行完成后的回调(耗时统计) 可为null
+     * @return 总影响行数
+     * @throws DataAccessException
+     */
+    public long batchUpdate(String sql, final Iterator<Object[]> batchArgs, final int chunkSize,
+                            final boolean rewriteMultiValues, @Nullable final BatchChunkCallback callback) throws DataAccessException {
+        Assert.notNull(batchArgs, "Batch args must not be null");
+        Assert.isTrue(chunkSize > 0, "Chunk size must be greater than 0");
+        final String chunkSql = this.replaceSql(sql);
+        final MultiValuesInsert multiValues = rewriteMultiValues ? MultiValuesInsert.parse(chunkSql) : null;
+        if (rewriteMultiValues && multiValues == null && this.logger.isDebugEnabled()) {
+            this.logger.debug("SQL is not a plain single-row INSERT ... VALUES (...), executing as JDBC batch: " + chunkSql);
+        }
+
+        Long total = this.execute((ConnectionCallback<Long>) con -> {
+            // 在Spring事务中时不能按块提交 否则会破坏外层事务
+            boolean commitPerChunk = !TransactionSynchronizationManager.isActualTransactionActive() && con.getAutoCommit();
+            if (commitPerChunk) {
+                con.setAutoCommit(false);
+            }
+
+            List<Object[]> chunk = new ArrayList<>(chunkSize);
+            PreparedStatement ps = null;
+            PreparedStatement tailPs = null;
+            long affected = 0;
+            int chunkIndex = 0;
+            try {
+                if (multiValues == null) {
+                    ps = con.prepareStatement(chunkSql);
+                    this.applyStatementSettings(ps);
+                }
+                while (batchArgs.hasNext()) {
+                    chunk.add(batchArgs.next());
+                    if (chunk.size() < chunkSize && batchArgs.hasNext()) {
+                        continue;
+                    }
+
+                    long start = System.nanoTime();
+                    int rows;
+                    if (multiValues == null) {
+                        rows = executeChunk(ps, chunk);
+                    } else if (chunk.size() == chunkSize) {
+                        // 整块复用同一个预编译语句
+                        if (ps == null) {
+                            ps = con.prepareStatement(multiValues.sql(chunkSize));
+                            this.applyStatementSettings(ps);
+                        }
+                        rows = executeMultiValuesChunk(ps, chunk);
+                    } else {
+                        // 最后一块行数不足 单独预编译
+                        tailPs = con.prepareStatement(multiValues.sql(chunk.size()));
+                        this.applyStatementSettings(tailPs);
+                        rows = executeMultiValuesChunk(tailPs, chunk);
+                    }
+                    if (commitPerChunk) {
+                        con.commit();
+                    }
+                    long elapsedNanos = System.nanoTime() - start;
+
+                    affected += rows;
+                    if (callback != null) {
+                        callback.afterChunk(chunkIndex, chunk.size(), rows, elapsedNanos);
+                    }
+                    if (this.logger.isTraceEnabled()) {
+                        this.logger.trace("Executed SQL batch chunk #" + chunkIndex + " with " + chunk.size() + " rows in " + elapsedNanos / 1000000 + " ms");
+                    }
+                    chunkIndex++;
+                    chunk.clear();
+                }
+                return affected;
+            } catch (SQLException | RuntimeException ex) {
+                // 只回滚未提交的当前块 已提交的块保留
+                if (commitPerChunk) {
+                    try {
+                        con.rollback();
+                    } catch (SQLException | RuntimeException rollbackEx) {
+                        // 回滚失败不能掩盖原始异常
+                        ex.addSuppressed(rollbackEx);
+                    }
+                }
+                throw ex;
+            } finally {
+                JdbcUtils.closeStatement(ps);
+                JdbcUtils.closeStatement(tailPs);
+                if (commitPerChunk) {
+                    con.setAutoCommit(true);
+                }
+            }
+        });
+        return total != null ? total : 0L;
+    }
+
+    private static int executeChunk(PreparedStatement ps, List<Object[]> chunk) throws SQLException {
+        for (Object[] args : chunk) {
+            setParameterValues(ps, args, 0);
+            ps.addBatch();
+        }
+        int rows = 0;
+        for (int count : ps.executeBatch()) {
+            // 驱动返回SUCCESS_NO_INFO时按1行计
+            rows += count >= 0 ? count : (count == Statement.SUCCESS_NO_INFO ? 1 : 0);
+        }
+        return rows;
+    }
+
+    private static int executeMultiValuesChunk(PreparedStatement ps, List<Object[]> chunk) throws SQLException {
+        int offset = 0;
+        for (Object[] args : chunk) {
+            offset = setParameterValues(ps, args, offset);
+        }
+        return ps.executeUpdate();
+    }
+
+    private static int setParameterValues(PreparedStatement ps, Object[] args, int offset) throws SQLException {
+        int colIndex = offset;
+        for (Object value : args) {
+            ++colIndex;
+            if (value instanceof SqlParameterValue) {
+                SqlParameterValue paramValue = (SqlParameterValue) value;
+                StatementCreatorUtils.setParameterValue(ps, colIndex, paramValue, paramValue.getValue());
+            } else {
+                StatementCreatorUtils.setParameterValue(ps, colIndex, SqlTypeValue.TYPE_UNKNOWN, value);
+            }
+        }
+        return colIndex;
+    }
+
+    /**
+     * 分块执行回调
+     */
+    @FunctionalInterface
+    public interface BatchChunkCallback {
+
+        /**
+         * 每块执行(及提交)完成后回调
+         * @param chunkIndex    块序号 从0开始
+         * @param rows          本块参数行数
+         * @param affected      本块影响行数
+         * @param elapsedNanos  本块执行耗时(纳秒)
+         */
+        void afterChunk(int chunkIndex, int rows, int affected, long elapsedNanos);
+    }
+
+    /**
+     * 单行INSERT改写为多VALUES INSERT
+     *      INSERT INTO t (a, b) VALUES (?, ?)  =>  INSERT INTO t (a, b) VALUES (?, ?),(?, ?),...
+     */
+    static class MultiValuesInsert {
+        private final String prefix;
+        private final String group;
+
+        private MultiValuesInsert(String prefix, String group) {
+            this.prefix = prefix;
+            this.group = group;
+        }
+
+        /**
+         * 解析单行INSERT 不能改写时返回null
+         *      VALUES取列清单之后第一个括号外的关键字 元组之后还有内容(ON DUPLICATE KEY UPDATE a=VALUES(a)、RETURNING等)的不改写
+         */
+        @Nullable
+        static MultiValuesInsert parse(String sql) {
+            String trimmed = sql.trim();
+            // 跳过dbAnnotatePrefix等前置注释
+            int start = 0;
+            while (start < trimmed.length()) {
+                if (Character.isWhitespace(trimmed.charAt(start))) {
+                    start++;
+                } else if (trimmed.startsWith("/*", start) || trimmed.startsWith("--", start)) {
+                    int end = skipComment(trimmed, start);
+                    if (end < 0) {
+                        return null;
+                    }
+                    start = end + 1;
+                } else {
+                    break;
+                }
+            }
+            if (!trimmed.regionMatches(true, start, "INSERT", 0, "INSERT".length())) {
+                return null;
+            }
+            int idx = indexOfValuesKeyword(trimmed);
+            if (idx < 0) {
+                return null;
+            }
+            int groupStart = idx + "VALUES".length();
+            while (groupStart < trimmed.length() && Character.isWhitespace(trimmed.charAt(groupStart))) {
+                groupStart++;
+            }
+            int groupEnd = groupStart < trimmed.length() && trimmed.charAt(groupStart) == '(' ? indexOfClosingParen(trimmed, groupStart) : -1;
+            if (groupEnd != trimmed.length() - 1) {
+                return null;
+            }
+            return new MultiValuesInsert(trimmed.substring(0, idx + "VALUES".length()) + " ", trimmed.substring(groupStart));
+        }
+
+        /**
+         * 括号和引号之外的第一个VALUES关键字
+         */
+        private static int indexOfValuesKeyword(String sql) {
+            int depth = 0;
+            for (int i = 0; i < sql.length(); i++) {
+                char c = sql.charAt(i);
+                if (c == '\'' || c == '"' || c == '`') {
+                    i = skipQuoted(sql, i);
+                    if (i < 0) {
+                        return -1;
+                    }
+                } else if (sql.startsWith("/*", i) || sql.startsWith("--", i)) {
+                    i = skipComment(sql, i);
+                    if (i < 0) {
+                        return -1;
+                    }
+                } else if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                } else if (depth == 0 && sql.regionMatches(true, i, "VALUES", 0, "VALUES".length())
+                        && (i == 0 || !Character.isJavaIdentifierPart(sql.charAt(i - 1)))
+                        && (i + "VALUES".length() == sql.length() || !Character.isJavaIdentifierPart(sql.charAt(i + "VALUES".length())))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static int indexOfClosingParen(String sql, int open) {
+            int depth = 0;
+            for (int i = open; i < sql.length(); i++) {
+                char c = sql.charAt(i);
+                if (c == '\'' || c == '"' || c == '`') {
+                    i = skipQuoted(sql, i);
+                    if (i < 0) {
+                        return -1;
+                    }
+                } else if (sql.startsWith("/*", i) || sql.startsWith("--", i)) {
+                    i = skipComment(sql, i);
+                    if (i < 0) {
+                        return -1;
+                    }
+                } else if (c == '(') {
+                    depth++;
+                } else if (c == ')' && --depth == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * 返回注释的最后一个字符位置 块注释未闭合时返回-1
+         */
+        private static int skipComment(String sql, int start) {
+            if (sql.startsWith("--", start)) {
+                int end = sql.indexOf('\n', start);
+                return end < 0 ? sql.length() - 1 : end;
+            }
+            int end = sql.indexOf("*/", start + 2);
+            return end < 0 ? -1 : end + 1;
+        }
+
+        /**
+         * 返回引号段的结束引号位置 未闭合时返回-1 连续两个引号和反斜杠转义都视为段内字符
+         */
+        private static int skipQuoted(String sql, int start) {
+            char quote = sql.charAt(start);
+            for (int i = start + 1; i < sql.length(); i++) {
+                char c = sql.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote) {
+                    if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                        i++;
+                    } else {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        String sql(int rows) {
+            StringBuilder sb = new StringBuilder(this.prefix.length() + (this.group.length() + 1) * rows);
+            sb.append(this.prefix);
+            for (int i = 0; i < rows; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(this.group);
+            }
+            return sb.toString();
+        }
+    }
+
     static class IDataAccessUtils {
         IDataAccessUtils() {
         }
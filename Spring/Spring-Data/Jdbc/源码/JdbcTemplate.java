@@ -19,6 +19,12 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.sql.DataSource;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.InvalidDataAccessApiUsageException;
@@ -32,6 +38,8 @@ import org.springframework.jdbc.support.JdbcUtils;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.lang.Nullable;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.Assert;
 import org.springframework.util.LinkedCaseInsensitiveMap;
 import org.springframework.util.StringUtils;
@@ -533,6 +541,76 @@ public class JdbcTemplate extends JdbcAccessor implements JdbcOperations {
         return (List)result(this.query((String)sql, (Object[])args, (ResultSetExtractor)(new RowMapperResultSetExtractor(rowMapper))));
     }
 
+	// 流式查询 逐行映射 不构建List
+	// 连接/语句/结果集一直保持打开 直到Stream被关闭、读完或者所在事务结束 【调用方必须用try-with-resources关闭Stream】
+	// 配合setFetchSize使用服务端游标(如MySQL需fetchSize=Integer.MIN_VALUE或useCursorFetch=true)
+    public <T> Stream<T> queryForStream(PreparedStatementCreator psc, @Nullable PreparedStatementSetter pss, RowMapper<T> rowMapper) throws DataAccessException {
+        Assert.notNull(psc, "PreparedStatementCreator must not be null");
+        Assert.notNull(rowMapper, "RowMapper must not be null");
+        String sql = getSql(psc);
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Executing prepared SQL streaming query" + (sql != null ? " [" + sql + "]" : ""));
+        }
+
+        Connection con = DataSourceUtils.getConnection(this.obtainDataSource());
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+
+        try {
+            ps = psc.createPreparedStatement(con);
+            this.applyStatementSettings(ps);
+            if (pss != null) {
+                pss.setValues(ps);
+            }
+
+            rs = ps.executeQuery();
+            this.handleWarnings((Statement)ps);
+        } catch (SQLException var8) {
+            cleanupParameters(psc, pss);
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(ps);
+            DataSourceUtils.releaseConnection(con, this.getDataSource());
+            throw this.translateException("StreamingPreparedStatementCallback", sql, var8);
+        } catch (RuntimeException | Error var9) {
+			// 和execute()一样 任何异常都要释放语句和连接
+            cleanupParameters(psc, pss);
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(ps);
+            DataSourceUtils.releaseConnection(con, this.getDataSource());
+            throw var9;
+        }
+
+        final JdbcTemplate.StreamResources resources = new JdbcTemplate.StreamResources(con, ps, rs, psc, pss);
+
+        try {
+			// 事务结束前关闭未关闭的Stream 把连接引用计数还给ConnectionHolder
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                    public int getOrder() {
+                        return DataSourceUtils.CONNECTION_SYNCHRONIZATION_ORDER - 1;
+                    }
+
+                    public void beforeCompletion() {
+                        resources.close();
+                    }
+                });
+            }
+
+            return StreamSupport.stream(new JdbcTemplate.ResultSetSpliterator(rs, rowMapper, resources, sql), false).onClose(resources::close);
+        } catch (RuntimeException | Error var10) {
+            resources.close();
+            throw var10;
+        }
+    }
+
+    public <T> Stream<T> queryForStream(String sql, @Nullable PreparedStatementSetter pss, RowMapper<T> rowMapper) throws DataAccessException {
+        return this.queryForStream((PreparedStatementCreator)(new JdbcTemplate.SimplePreparedStatementCreator(sql)), pss, rowMapper);
+    }
+
+    public <T> Stream<T> queryForStream(String sql, RowMapper<T> rowMapper, @Nullable Object... args) throws DataAccessException {
+        return this.queryForStream(sql, this.newArgPreparedStatementSetter(args), rowMapper);
+    }
+
     @Nullable
     public <T> T queryForObject(String sql, Object[] args, int[] argTypes, RowMapper<T> rowMapper) throws DataAccessException {
         List<T> results = (List)this.query(sql, args, argTypes, (ResultSetExtractor)(new RowMapperResultSetExtractor(rowMapper, 1)));
@@ -1097,6 +1175,17 @@ public class JdbcTemplate extends JdbcAccessor implements JdbcOperations {
         return result;
     }
 
+    private static void cleanupParameters(PreparedStatementCreator psc, @Nullable PreparedStatementSetter pss) {
+        if (psc instanceof ParameterDisposer) {
+            ((ParameterDisposer)psc).cleanupParameters();
+        }
+
+        if (pss instanceof ParameterDisposer) {
+            ((ParameterDisposer)pss).cleanupParameters();
+        }
+
+    }
+
     private static int updateCount(@Nullable Integer result) {
         Assert.state(result != null, "No update count");
         return result;
@@ -1119,6 +1208,76 @@ public class JdbcTemplate extends JdbcAccessor implements JdbcOperations {
         }
     }
 
+	// 逐行读取ResultSet 每次tryAdvance只映射一行
+    private class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+        private final ResultSet rs;
+        private final RowMapper<T> rowMapper;
+        private final JdbcTemplate.StreamResources resources;
+        @Nullable
+        private final String sql;
+        private int rowNum = 0;
+
+        public ResultSetSpliterator(ResultSet rs, RowMapper<T> rowMapper, JdbcTemplate.StreamResources resources, @Nullable String sql) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED);
+            this.rs = rs;
+            this.rowMapper = rowMapper;
+            this.resources = resources;
+            this.sql = sql;
+        }
+
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (this.resources.isClosed()) {
+                return false;
+            }
+
+            try {
+                if (this.rs.next()) {
+                    action.accept(this.rowMapper.mapRow(this.rs, this.rowNum++));
+                    return true;
+                }
+            } catch (SQLException var3) {
+                this.resources.close();
+                throw JdbcTemplate.this.translateException("StreamingResultSet", this.sql, var3);
+            }
+
+			// 读完立即释放连接 不必等Stream关闭
+            this.resources.close();
+            return false;
+        }
+    }
+
+	// 流式查询占用的资源 关闭顺序 ResultSet -> Statement -> Connection 只关闭一次
+    private class StreamResources {
+        private final Connection con;
+        private final PreparedStatement ps;
+        private final ResultSet rs;
+        private final PreparedStatementCreator psc;
+        @Nullable
+        private final PreparedStatementSetter pss;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        public StreamResources(Connection con, PreparedStatement ps, ResultSet rs, PreparedStatementCreator psc, @Nullable PreparedStatementSetter pss) {
+            this.con = con;
+            this.ps = ps;
+            this.rs = rs;
+            this.psc = psc;
+            this.pss = pss;
+        }
+
+        public boolean isClosed() {
+            return this.closed.get();
+        }
+
+        public void close() {
+            if (this.closed.compareAndSet(false, true)) {
+                JdbcUtils.closeResultSet(this.rs);
+                JdbcTemplate.cleanupParameters(this.psc, this.pss);
+                JdbcUtils.closeStatement(this.ps);
+                DataSourceUtils.releaseConnection(this.con, JdbcTemplate.this.getDataSource());
+            }
+        }
+    }
+
     private static class SimpleCallableStatementCreator implements CallableStatementCreator, SqlProvider {
         private final String callString;
 
@@ -0,0 +1,22 @@
+package org.springframework.data.redis.serializer;
+
+import java.nio.ByteBuffer;
+import org.springframework.lang.Nullable;
+
+// ByteBuffer透传序列化器 写入时直接使用调用方的缓冲区 读取时返回只读视图 都不复制内容
+enum ByteBufferPassThroughSerializer implements ByteBufferRedisSerializer<ByteBuffer> {
+    INSTANCE;
+
+    private ByteBufferPassThroughSerializer() {
+    }
+
+    @Nullable
+    public ByteBuffer serializeToBuffer(@Nullable ByteBuffer value) {
+        return value;
+    }
+
+    @Nullable
+    public ByteBuffer deserialize(@Nullable ByteBuffer buffer) {
+        return buffer == null || !buffer.hasRemaining() ? null : buffer.asReadOnlyBuffer();
+    }
+}
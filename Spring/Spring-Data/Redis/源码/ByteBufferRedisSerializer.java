@@ -0,0 +1,44 @@
+package org.springframework.data.redis.serializer;
+
+import java.nio.ByteBuffer;
+import org.springframework.lang.Nullable;
+
+// 基于ByteBuffer的序列化器 大对象可以直接从堆外/池化缓冲区写出 读取时返回驱动返回数组上的视图
+// byte[]版本的方法默认由ByteBuffer版本实现 可以直接作为普通RedisSerializer配置给RedisTemplate
+public interface ByteBufferRedisSerializer<T> extends RedisSerializer<T> {
+	// 序列化结果 从position到limit是有效内容
+    @Nullable
+    ByteBuffer serializeToBuffer(@Nullable T value) throws SerializationException;
+
+	// 参数是只读视图 实现不应该保留对它的修改
+    @Nullable
+    T deserialize(@Nullable ByteBuffer buffer) throws SerializationException;
+
+    @Nullable
+    default byte[] serialize(@Nullable T value) throws SerializationException {
+        return toByteArray(this.serializeToBuffer(value));
+    }
+
+    @Nullable
+    default T deserialize(@Nullable byte[] bytes) throws SerializationException {
+        return this.deserialize(bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+    }
+
+	// 转成驱动需要的byte[] 堆内缓冲区正好覆盖整个数组时直接返回底层数组 不复制
+    static byte[] toByteArray(@Nullable ByteBuffer buffer) {
+        if (buffer == null) {
+            return SerializationUtils.EMPTY_ARRAY;
+        } else if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return bytes;
+        }
+    }
+
+    static ByteBufferRedisSerializer<ByteBuffer> byteBuffer() {
+		// 原样透传ByteBuffer的序列化器
+        return ByteBufferPassThroughSerializer.INSTANCE;
+    }
+}
@@ -0,0 +1,617 @@
+package org.springframework.data.redis.serializer;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+// 紧凑二进制序列化器 用来代替JdkSerializationRedisSerializer
+// 格式: 魔数(1字节) + 格式版本(1字节) + 带类型标签的值
+//   常用类型(null boolean 整数 浮点 String byte[] Date BigDecimal BigInteger ArrayList HashSet HashMap等)直接写标签和内容 整数用zigzag变长编码
+//   业务类型通过registerCodec注册Codec(typeId -> 手写的读写逻辑) 只写typeId不写类名 热点路径上没有反射和类描述符解析
+//   其余类型退化为JDK序列化 保证任何Serializable对象都能写入
+// 读取时第一个字节不是魔数的数据(如旧版本用JdkSerializationRedisSerializer写入的缓存)交给JDK反序列化 发版期间新旧数据可以共存
+// 写入使用线程本地的复用缓冲区 每次序列化只分配最终返回的数组
+// 集合只有ArrayList HashSet/LinkedHashSet HashMap/LinkedHashMap这几个确切类型走紧凑格式 反序列化后分别是ArrayList/LinkedHashSet/LinkedHashMap(仍是原类型或其子类)
+// TreeMap LinkedList EnumSet 不可变集合以及业务子类等其余集合都走JDK序列化 保留具体类型和字段 保证能直接替换JdkSerializationRedisSerializer
+public class CompactBinaryRedisSerializer implements RedisSerializer<Object> {
+    static final byte MAGIC = (byte)0xC5;						// JDK序列化流以0xAC 0xED开头 不会冲突
+    static final byte FORMAT_VERSION = 1;						// 格式版本 格式不兼容变化时递增 读取时按版本分支
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;	// 超过这个大小的缓冲区用完即丢弃 避免线程长期持有大数组
+
+    static final byte TAG_NULL = 0;
+    static final byte TAG_TRUE = 1;
+    static final byte TAG_FALSE = 2;
+    static final byte TAG_INT = 3;
+    static final byte TAG_LONG = 4;
+    static final byte TAG_DOUBLE = 5;
+    static final byte TAG_FLOAT = 6;
+    static final byte TAG_SHORT = 7;
+    static final byte TAG_BYTE = 8;
+    static final byte TAG_CHAR = 9;
+    static final byte TAG_STRING = 10;
+    static final byte TAG_BYTES = 11;
+    static final byte TAG_DATE = 12;
+    static final byte TAG_BIG_DECIMAL = 13;
+    static final byte TAG_BIG_INTEGER = 14;
+    static final byte TAG_LIST = 15;
+    static final byte TAG_SET = 16;
+    static final byte TAG_MAP = 17;
+    static final byte TAG_CUSTOM = 18;
+    static final byte TAG_JAVA = 19;
+
+    private final ThreadLocal<CompactBinaryRedisSerializer.Output> outputs = new ThreadLocal();
+    private final ConcurrentHashMap<Class<?>, CompactBinaryRedisSerializer.Registration> registrationsByType = new ConcurrentHashMap();
+    private final ConcurrentHashMap<Integer, CompactBinaryRedisSerializer.Registration> registrationsById = new ConcurrentHashMap();
+    private final JdkSerializationRedisSerializer javaSerializer;	// 兜底序列化 以及读取旧数据
+
+    public CompactBinaryRedisSerializer() {
+        this(new JdkSerializationRedisSerializer());
+    }
+
+    public CompactBinaryRedisSerializer(@Nullable ClassLoader classLoader) {
+        this(new JdkSerializationRedisSerializer(classLoader));
+    }
+
+    public CompactBinaryRedisSerializer(JdkSerializationRedisSerializer javaSerializer) {
+        Assert.notNull(javaSerializer, "JdkSerializationRedisSerializer must not be null!");
+        this.javaSerializer = javaSerializer;
+    }
+
+	// 注册业务类型的编解码器 typeId写入数据 发版后不能改变 同一个类型的字段变化由Codec自己兼容(如先写一个字段数)
+	// 按具体类型精确匹配 子类需要单独注册
+    public <T> CompactBinaryRedisSerializer registerCodec(int typeId, Class<T> type, CompactBinaryRedisSerializer.Codec<T> codec) {
+        Assert.isTrue(typeId >= 0, "typeId must not be negative");
+        Assert.notNull(type, "Type must not be null!");
+        Assert.notNull(codec, "Codec must not be null!");
+        CompactBinaryRedisSerializer.Registration registration = new CompactBinaryRedisSerializer.Registration(typeId, type, codec);
+        if (this.registrationsById.putIfAbsent(typeId, registration) != null) {
+            throw new IllegalArgumentException("Duplicate typeId " + typeId + " for " + type.getName());
+        } else if (this.registrationsByType.putIfAbsent(type, registration) != null) {
+            this.registrationsById.remove(typeId, registration);
+            throw new IllegalArgumentException("Codec for " + type.getName() + " already registered");
+        } else {
+            return this;
+        }
+    }
+
+	// 序列化
+    public byte[] serialize(@Nullable Object object) {
+        if (object == null) {
+            return SerializationUtils.EMPTY_ARRAY;
+        } else {
+            CompactBinaryRedisSerializer.Output out = this.borrowOutput();
+
+            try {
+                out.writeByte(MAGIC);
+                out.writeByte(FORMAT_VERSION);
+                out.writeObject(object);
+                return out.toByteArray();
+            } catch (SerializationException var8) {
+                throw var8;
+            } catch (Exception var9) {
+                throw new SerializationException("Cannot serialize", var9);
+            } finally {
+                this.returnOutput(out);
+            }
+        }
+    }
+
+	// 反序列化
+    public Object deserialize(@Nullable byte[] bytes) {
+        if (SerializationUtils.isEmpty(bytes)) {
+            return null;
+        } else if (bytes[0] != MAGIC) {
+            return this.javaSerializer.deserialize(bytes);
+        } else {
+            try {
+                CompactBinaryRedisSerializer.Input in = new CompactBinaryRedisSerializer.Input(this, bytes, 1);
+                int version = in.readByte();
+                if (version != FORMAT_VERSION) {
+                    throw new SerializationException("Unsupported format version " + version + ", expected " + FORMAT_VERSION);
+                } else {
+                    return in.readObject();
+                }
+            } catch (SerializationException var4) {
+                throw var4;
+            } catch (Exception var5) {
+                throw new SerializationException("Cannot deserialize", var5);
+            }
+        }
+    }
+
+	// 同一个线程嵌套调用(如Codec内部又调用了serialize)时缓冲区已被占用 临时新建一个
+    private CompactBinaryRedisSerializer.Output borrowOutput() {
+        CompactBinaryRedisSerializer.Output out = (CompactBinaryRedisSerializer.Output)this.outputs.get();
+        if (out == null) {
+            return new CompactBinaryRedisSerializer.Output(this, INITIAL_BUFFER_SIZE);
+        } else {
+            this.outputs.set(null);
+            out.reset();
+            return out;
+        }
+    }
+
+    private void returnOutput(CompactBinaryRedisSerializer.Output out) {
+        if (out.capacity() <= MAX_POOLED_BUFFER_SIZE) {
+            this.outputs.set(out);
+        }
+
+    }
+
+    @Nullable
+    CompactBinaryRedisSerializer.Registration getRegistration(Class<?> type) {
+        return (CompactBinaryRedisSerializer.Registration)this.registrationsByType.get(type);
+    }
+
+    CompactBinaryRedisSerializer.Registration getRegistration(int typeId) {
+        CompactBinaryRedisSerializer.Registration registration = (CompactBinaryRedisSerializer.Registration)this.registrationsById.get(typeId);
+        if (registration == null) {
+            throw new SerializationException("No codec registered for typeId " + typeId);
+        } else {
+            return registration;
+        }
+    }
+
+    byte[] serializeJava(Object value) {
+        return this.javaSerializer.serialize(value);
+    }
+
+    Object deserializeJava(byte[] bytes) {
+        return this.javaSerializer.deserialize(bytes);
+    }
+
+	// 业务类型编解码器 按固定顺序读写字段 字段值可以用writeObject/readObject嵌套任意支持的类型
+    public interface Codec<T> {
+        void write(T value, CompactBinaryRedisSerializer.Output out);
+
+        T read(CompactBinaryRedisSerializer.Input in);
+    }
+
+    static class Registration {
+        final int typeId;
+        final Class<?> type;
+        final CompactBinaryRedisSerializer.Codec<Object> codec;
+
+        Registration(int typeId, Class<?> type, CompactBinaryRedisSerializer.Codec<?> codec) {
+            this.typeId = typeId;
+            this.type = type;
+            this.codec = (CompactBinaryRedisSerializer.Codec<Object>)codec;
+        }
+    }
+
+	// 写缓冲区 容量不足时按2倍扩容
+    public static final class Output {
+        private final CompactBinaryRedisSerializer serializer;
+        private byte[] buffer;
+        private int position;
+
+        Output(CompactBinaryRedisSerializer serializer, int initialSize) {
+            this.serializer = serializer;
+            this.buffer = new byte[initialSize];
+            this.position = 0;
+        }
+
+        void reset() {
+            this.position = 0;
+        }
+
+        int capacity() {
+            return this.buffer.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(this.buffer, this.position);
+        }
+
+        private void ensureCapacity(int required) {
+            if (this.position + required > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length << 1, this.position + required));
+            }
+
+        }
+
+        public void writeByte(int value) {
+            this.ensureCapacity(1);
+            this.buffer[this.position++] = (byte)value;
+        }
+
+        public void writeBoolean(boolean value) {
+            this.writeByte(value ? 1 : 0);
+        }
+
+		// 无符号变长编码 每字节7位 最高位表示后面还有字节
+        public void writeVarInt(int value) {
+            this.ensureCapacity(5);
+            while((value & -128) != 0) {
+                this.buffer[this.position++] = (byte)(value & 127 | 128);
+                value >>>= 7;
+            }
+
+            this.buffer[this.position++] = (byte)value;
+        }
+
+        public void writeVarLong(long value) {
+            this.ensureCapacity(10);
+            while((value & -128L) != 0L) {
+                this.buffer[this.position++] = (byte)((int)(value & 127L | 128L));
+                value >>>= 7;
+            }
+
+            this.buffer[this.position++] = (byte)((int)value);
+        }
+
+		// zigzag 让绝对值小的负数也只占很少的字节
+        public void writeInt(int value) {
+            this.writeVarInt(value << 1 ^ value >> 31);
+        }
+
+        public void writeLong(long value) {
+            this.writeVarLong(value << 1 ^ value >> 63);
+        }
+
+        public void writeFixedLong(long value) {
+            this.ensureCapacity(8);
+            for(int shift = 56; shift >= 0; shift -= 8) {
+                this.buffer[this.position++] = (byte)((int)(value >>> shift));
+            }
+
+        }
+
+        public void writeDouble(double value) {
+            this.writeFixedLong(Double.doubleToRawLongBits(value));
+        }
+
+        public void writeFloat(float value) {
+            int bits = Float.floatToRawIntBits(value);
+            this.ensureCapacity(4);
+            this.buffer[this.position++] = (byte)(bits >>> 24);
+            this.buffer[this.position++] = (byte)(bits >>> 16);
+            this.buffer[this.position++] = (byte)(bits >>> 8);
+            this.buffer[this.position++] = (byte)bits;
+        }
+
+        public void writeBytes(byte[] value) {
+            this.writeVarInt(value.length);
+            this.ensureCapacity(value.length);
+            System.arraycopy(value, 0, this.buffer, this.position, value.length);
+            this.position += value.length;
+        }
+
+		// UTF-8长度 + 内容 直接编码进缓冲区 不经过String.getBytes的中间数组
+		// 先按最坏情况(每个char 3字节)预留长度前缀之后的空间 写完再回填长度
+        public void writeString(String value) {
+            int length = value.length();
+            int maxBytes = length * 3;
+            int prefixSize = varIntSize(maxBytes);
+            this.ensureCapacity(prefixSize + maxBytes);
+            int start = this.position + prefixSize;
+            int pos = start;
+            byte[] buf = this.buffer;
+
+            for(int i = 0; i < length; ++i) {
+                char c = value.charAt(i);
+                if (c < 128) {
+                    buf[pos++] = (byte)c;
+                } else if (c < 2048) {
+                    buf[pos++] = (byte)(192 | c >> 6);
+                    buf[pos++] = (byte)(128 | c & 63);
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buf[pos++] = (byte)(240 | codePoint >> 18);
+                    buf[pos++] = (byte)(128 | codePoint >> 12 & 63);
+                    buf[pos++] = (byte)(128 | codePoint >> 6 & 63);
+                    buf[pos++] = (byte)(128 | codePoint & 63);
+                } else if (Character.isSurrogate(c)) {
+                    buf[pos++] = (byte)'?';					// 不成对的代理字符 与String.getBytes(UTF_8)的处理一致
+                } else {
+                    buf[pos++] = (byte)(224 | c >> 12);
+                    buf[pos++] = (byte)(128 | c >> 6 & 63);
+                    buf[pos++] = (byte)(128 | c & 63);
+                }
+            }
+
+            int byteLength = pos - start;
+            int actualPrefixSize = varIntSize(byteLength);
+            if (actualPrefixSize != prefixSize) {
+                System.arraycopy(buf, start, buf, this.position + actualPrefixSize, byteLength);
+            }
+
+            this.writeVarInt(byteLength);
+            this.position += byteLength;
+        }
+
+        private static int varIntSize(int value) {
+            int size = 1;
+            while((value & -128) != 0) {
+                value >>>= 7;
+                ++size;
+            }
+
+            return size;
+        }
+
+		// 带类型标签写入任意支持的值
+        public void writeObject(@Nullable Object value) {
+            if (value == null) {
+                this.writeByte(TAG_NULL);
+            } else if (value instanceof String) {
+                this.writeByte(TAG_STRING);
+                this.writeString((String)value);
+            } else if (value instanceof Integer) {
+                this.writeByte(TAG_INT);
+                this.writeInt((Integer)value);
+            } else if (value instanceof Long) {
+                this.writeByte(TAG_LONG);
+                this.writeLong((Long)value);
+            } else if (value instanceof Boolean) {
+                this.writeByte((Boolean)value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Double) {
+                this.writeByte(TAG_DOUBLE);
+                this.writeDouble((Double)value);
+            } else if (value instanceof byte[]) {
+                this.writeByte(TAG_BYTES);
+                this.writeBytes((byte[])value);
+            } else {
+                CompactBinaryRedisSerializer.Registration registration = this.serializer.getRegistration(value.getClass());
+                if (registration != null) {
+                    this.writeByte(TAG_CUSTOM);
+                    this.writeVarInt(registration.typeId);
+                    registration.codec.write(value, this);
+                } else {
+                    this.writeOtherObject(value);
+                }
+            }
+
+        }
+
+        private void writeOtherObject(Object value) {
+            if (value instanceof Float) {
+                this.writeByte(TAG_FLOAT);
+                this.writeFloat((Float)value);
+            } else if (value instanceof Short) {
+                this.writeByte(TAG_SHORT);
+                this.writeInt((Short)value);
+            } else if (value instanceof Byte) {
+                this.writeByte(TAG_BYTE);
+                this.writeByte((Byte)value);
+            } else if (value instanceof Character) {
+                this.writeByte(TAG_CHAR);
+                this.writeVarInt((Character)value);
+            } else if (value.getClass() == Date.class) {
+                this.writeByte(TAG_DATE);
+                this.writeLong(((Date)value).getTime());
+            } else if (value.getClass() == BigDecimal.class) {
+                BigDecimal decimal = (BigDecimal)value;
+                this.writeByte(TAG_BIG_DECIMAL);
+                this.writeInt(decimal.scale());
+                this.writeBytes(decimal.unscaledValue().toByteArray());
+            } else if (value.getClass() == BigInteger.class) {
+                this.writeByte(TAG_BIG_INTEGER);
+                this.writeBytes(((BigInteger)value).toByteArray());
+            } else if (value.getClass() == ArrayList.class) {
+                this.writeByte(TAG_LIST);
+                this.writeElements((Collection)value);
+            } else if (value.getClass() == HashSet.class || value.getClass() == LinkedHashSet.class) {
+                this.writeByte(TAG_SET);
+                this.writeElements((Collection)value);
+            } else if (value.getClass() == HashMap.class || value.getClass() == LinkedHashMap.class) {
+                Map<?, ?> map = (Map)value;
+                this.writeByte(TAG_MAP);
+                this.writeVarInt(map.size());
+                for(Map.Entry<?, ?> entry : map.entrySet()) {
+                    this.writeObject(entry.getKey());
+                    this.writeObject(entry.getValue());
+                }
+            } else {
+                this.writeByte(TAG_JAVA);
+                this.writeBytes(this.serializer.serializeJava(value));
+            }
+
+        }
+
+        private void writeElements(Collection<?> collection) {
+            this.writeVarInt(collection.size());
+            Iterator var2 = collection.iterator();
+
+            while(var2.hasNext()) {
+                this.writeObject(var2.next());
+            }
+
+        }
+    }
+
+	// 读缓冲区 直接在原数组上读取
+    public static final class Input {
+        private final CompactBinaryRedisSerializer serializer;
+        private final byte[] buffer;
+        private int position;
+
+        Input(CompactBinaryRedisSerializer serializer, byte[] buffer, int position) {
+            this.serializer = serializer;
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        private void require(int length) {
+            if (length < 0 || this.position + length > this.buffer.length) {
+                throw new SerializationException("Unexpected end of data at position " + this.position + ", need " + length + " more bytes");
+            }
+        }
+
+        public byte readByte() {
+            this.require(1);
+            return this.buffer[this.position++];
+        }
+
+        public boolean readBoolean() {
+            return this.readByte() != 0;
+        }
+
+        public int readVarInt() {
+            int result = 0;
+            for(int shift = 0; shift < 32; shift += 7) {
+                byte b = this.readByte();
+                result |= (b & 127) << shift;
+                if ((b & 128) == 0) {
+                    return result;
+                }
+            }
+
+            throw new SerializationException("Malformed varint at position " + this.position);
+        }
+
+        public long readVarLong() {
+            long result = 0L;
+            for(int shift = 0; shift < 64; shift += 7) {
+                byte b = this.readByte();
+                result |= (long)(b & 127) << shift;
+                if ((b & 128) == 0) {
+                    return result;
+                }
+            }
+
+            throw new SerializationException("Malformed varlong at position " + this.position);
+        }
+
+        public int readInt() {
+            int value = this.readVarInt();
+            return value >>> 1 ^ -(value & 1);
+        }
+
+        public long readLong() {
+            long value = this.readVarLong();
+            return value >>> 1 ^ -(value & 1L);
+        }
+
+        public long readFixedLong() {
+            this.require(8);
+            long value = 0L;
+            for(int i = 0; i < 8; ++i) {
+                value = value << 8 | (long)(this.buffer[this.position++] & 255);
+            }
+
+            return value;
+        }
+
+        public double readDouble() {
+            return Double.longBitsToDouble(this.readFixedLong());
+        }
+
+        public float readFloat() {
+            this.require(4);
+            int bits = (this.buffer[this.position] & 255) << 24 | (this.buffer[this.position + 1] & 255) << 16 | (this.buffer[this.position + 2] & 255) << 8 | this.buffer[this.position + 3] & 255;
+            this.position += 4;
+            return Float.intBitsToFloat(bits);
+        }
+
+        public byte[] readBytes() {
+            int length = this.readVarInt();
+            this.require(length);
+            byte[] value = Arrays.copyOfRange(this.buffer, this.position, this.position + length);
+            this.position += length;
+            return value;
+        }
+
+        public String readString() {
+            int length = this.readVarInt();
+            this.require(length);
+            String value = new String(this.buffer, this.position, length, StandardCharsets.UTF_8);
+            this.position += length;
+            return value;
+        }
+
+        @Nullable
+        public Object readObject() {
+            byte tag = this.readByte();
+            switch(tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_INT:
+                return this.readInt();
+            case TAG_LONG:
+                return this.readLong();
+            case TAG_DOUBLE:
+                return this.readDouble();
+            case TAG_FLOAT:
+                return this.readFloat();
+            case TAG_SHORT:
+                return (short)this.readInt();
+            case TAG_BYTE:
+                return this.readByte();
+            case TAG_CHAR:
+                return (char)this.readVarInt();
+            case TAG_STRING:
+                return this.readString();
+            case TAG_BYTES:
+                return this.readBytes();
+            case TAG_DATE:
+                return new Date(this.readLong());
+            case TAG_BIG_DECIMAL:
+                int scale = this.readInt();
+                return new BigDecimal(new BigInteger(this.readBytes()), scale);
+            case TAG_BIG_INTEGER:
+                return new BigInteger(this.readBytes());
+            case TAG_LIST:
+                int listSize = this.readCollectionSize();
+                List<Object> list = new ArrayList(listSize);
+                for(int i = 0; i < listSize; ++i) {
+                    list.add(this.readObject());
+                }
+
+                return list;
+            case TAG_SET:
+                int setSize = this.readCollectionSize();
+                Set<Object> set = new LinkedHashSet(Math.max(16, (int)((float)setSize / 0.75F) + 1));
+                for(int i = 0; i < setSize; ++i) {
+                    set.add(this.readObject());
+                }
+
+                return set;
+            case TAG_MAP:
+                int mapSize = this.readCollectionSize();
+                Map<Object, Object> map = new LinkedHashMap(Math.max(16, (int)((float)mapSize / 0.75F) + 1));
+                for(int i = 0; i < mapSize; ++i) {
+                    map.put(this.readObject(), this.readObject());
+                }
+
+                return map;
+            case TAG_CUSTOM:
+                return this.serializer.getRegistration(this.readVarInt()).codec.read(this);
+            case TAG_JAVA:
+                return this.serializer.deserializeJava(this.readBytes());
+            default:
+                throw new SerializationException("Unknown type tag " + tag + " at position " + (this.position - 1));
+            }
+        }
+
+		// 每个元素至少占1字节 大小超过剩余字节数说明数据已损坏 避免按错误的大小预分配
+        private int readCollectionSize() {
+            int size = this.readVarInt();
+            if (size < 0 || size > this.buffer.length - this.position) {
+                throw new SerializationException("Invalid collection size " + size + " at position " + this.position);
+            } else {
+                return size;
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package org.springframework.data.redis.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+// 单key读请求自动合并 可选开启
+// 并发的GET/HGET先进入队列 派发线程取到第一个请求后再等待一个很短的窗口(微秒级) 把窗口内的请求合并成一次pipeline:
+//   所有GET合并成一个MGET 每个HGET一条命令 同一批次内相同的key只查询一次
+// 一个派发线程同时只占用一个连接 吞吐随批次大小增长而不是连接数
+// 每个调用方拿到自己的CompletableFuture 批次失败时该批次所有请求都以同一个异常完成
+public class RedisAutoBatcher<K, V> implements InitializingBean, DisposableBean {
+    private static final Log logger = LogFactory.getLog(RedisAutoBatcher.class);
+
+    private final RedisTemplate<K, V> redisTemplate;
+    private final LinkedBlockingQueue<RedisAutoBatcher.Request> queue = new LinkedBlockingQueue();
+    private long windowNanos = TimeUnit.MICROSECONDS.toNanos(100L);	// 合并窗口
+    private int maxBatchSize = 256;									// 单批最多请求数
+    private int dispatcherThreads = 1;								// 派发线程数 即最多同时占用的连接数
+    private long timeoutNanos = -1L;								// 同步读取的最长等待 未设置时取连接的命令超时
+    private Thread[] dispatchers = new Thread[0];
+    private volatile boolean running = false;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder commands = new LongAdder();				// 去重后实际发出的key数
+
+    public RedisAutoBatcher(RedisTemplate<K, V> redisTemplate) {
+        Assert.notNull(redisTemplate, "RedisTemplate must not be null");
+        this.redisTemplate = redisTemplate;
+    }
+
+    public void setWindow(long window, TimeUnit unit) {
+        Assert.isTrue(window >= 0L, "'window' must not be negative");
+        this.windowNanos = unit.toNanos(window);
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        Assert.isTrue(maxBatchSize > 0, "'maxBatchSize' must be greater than 0");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setDispatcherThreads(int dispatcherThreads) {
+        Assert.isTrue(dispatcherThreads > 0, "'dispatcherThreads' must be greater than 0");
+        this.dispatcherThreads = dispatcherThreads;
+    }
+
+	// get/hGet等待批次结果的最长时间 超时抛QueryTimeoutException
+    public void setTimeout(long timeout, TimeUnit unit) {
+        Assert.isTrue(timeout > 0L, "'timeout' must be greater than 0");
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+	// 启动派发线程
+    public void afterPropertiesSet() {
+        if (this.timeoutNanos < 0L) {
+			// 命令超时加上合并窗口
+            this.timeoutNanos = commandTimeoutNanos(this.redisTemplate.getConnectionFactory()) + this.windowNanos;
+        }
+
+        this.running = true;
+        Thread[] dispatchers = new Thread[this.dispatcherThreads];
+        for(int i = 0; i < dispatchers.length; ++i) {
+            dispatchers[i] = new Thread(new Runnable() {
+                public void run() {
+                    RedisAutoBatcher.this.dispatchLoop();
+                }
+            }, "redis-auto-batcher-" + i);
+            dispatchers[i].setDaemon(true);
+            dispatchers[i].start();
+        }
+
+        this.dispatchers = dispatchers;
+    }
+
+	// 连接工厂配置的命令超时 取不到时用Lettuce的默认值60秒
+    private static long commandTimeoutNanos(@Nullable RedisConnectionFactory factory) {
+        if (factory instanceof LettuceConnectionFactory) {
+            return ((LettuceConnectionFactory)factory).getClientConfiguration().getCommandTimeout().toNanos();
+        } else if (factory instanceof JedisConnectionFactory) {
+            return ((JedisConnectionFactory)factory).getClientConfiguration().getReadTimeout().toNanos();
+        } else {
+            return TimeUnit.SECONDS.toNanos(60L);
+        }
+    }
+
+	// 停止派发线程 队列中剩余的请求以异常完成
+    public void destroy() {
+        this.running = false;
+        for(Thread dispatcher : this.dispatchers) {
+            dispatcher.interrupt();
+        }
+
+        RedisAutoBatcher.Request request;
+        while((request = (RedisAutoBatcher.Request)this.queue.poll()) != null) {
+            request.future.completeExceptionally(shutDown());
+        }
+
+    }
+
+    private static IllegalStateException shutDown() {
+        return new IllegalStateException("RedisAutoBatcher has been shut down");
+    }
+
+    public CompletableFuture<V> getAsync(K key) {
+        Assert.notNull(key, "non null key required");
+        return (CompletableFuture)this.submit(new RedisAutoBatcher.Request(key, (Object)null, false));
+    }
+
+    public <HK, HV> CompletableFuture<HV> hGetAsync(K key, HK hashKey) {
+        Assert.notNull(key, "non null key required");
+        Assert.notNull(hashKey, "non null hash key required");
+        return (CompletableFuture)this.submit(new RedisAutoBatcher.Request(key, hashKey, true));
+    }
+
+	// 同步读取 等待所在批次执行完成
+    @Nullable
+    public V get(K key) {
+        return this.await(this.getAsync(key));
+    }
+
+    @Nullable
+    public <HK, HV> HV hGet(K key, HK hashKey) {
+        return this.await(this.<HK, HV>hGetAsync(key, hashKey));
+    }
+
+    private CompletableFuture<Object> submit(RedisAutoBatcher.Request request) {
+        if (!this.running) {
+            throw new IllegalStateException("RedisAutoBatcher is not running; call afterPropertiesSet() before using it");
+        } else {
+            this.queue.offer(request);
+			// destroy可能在检查running之后已经清空了队列 此时自己移出并失败 移不出说明已被派发线程或destroy取走
+            if (!this.running && this.queue.remove(request)) {
+                request.future.completeExceptionally(shutDown());
+            }
+
+            return request.future;
+        }
+    }
+
+    private <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get(this.timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException var2) {
+            throw new QueryTimeoutException("Batched command timed out after " + TimeUnit.NANOSECONDS.toMillis(this.timeoutNanos) + " ms", var2);
+        } catch (InterruptedException var3) {
+            Thread.currentThread().interrupt();
+            throw new RedisSystemException("Interrupted while waiting for batched result", var3);
+        } catch (ExecutionException var4) {
+            Throwable cause = var4.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else {
+                throw new RedisSystemException("Batched command failed", cause);
+            }
+        }
+    }
+
+    private void dispatchLoop() {
+        List<RedisAutoBatcher.Request> batch = new ArrayList(this.maxBatchSize);
+
+        while(this.running) {
+            try {
+                RedisAutoBatcher.Request first = (RedisAutoBatcher.Request)this.queue.take();
+                batch.add(first);
+				// 等待窗口内的其他请求 攒够一批就不再等
+                if (this.windowNanos > 0L && this.queue.size() < this.maxBatchSize - 1) {
+                    LockSupport.parkNanos(this.windowNanos);
+                }
+
+                this.queue.drainTo(batch, this.maxBatchSize - 1);
+                this.execute(batch);
+            } catch (InterruptedException var7) {
+                if (!this.running) {
+                    break;
+                }
+            } catch (Throwable var8) {
+                logger.error("Unexpected exception in redis auto batcher", var8);
+            } finally {
+                batch.clear();
+            }
+        }
+
+    }
+
+	// 执行一个批次 GET去重后合并成一个MGET放在pipeline最前面 HGET去重后依次跟在后面
+    private void execute(List<RedisAutoBatcher.Request> batch) {
+        final Map<Object, List<RedisAutoBatcher.Request>> gets = new LinkedHashMap();
+        final Map<RedisAutoBatcher.HashField, List<RedisAutoBatcher.Request>> hGets = new LinkedHashMap();
+        for(RedisAutoBatcher.Request request : batch) {
+            if (request.hash) {
+                hGets.computeIfAbsent(new RedisAutoBatcher.HashField(request.key, request.hashKey), (k) -> new ArrayList(1)).add(request);
+            } else {
+                gets.computeIfAbsent(request.key, (k) -> new ArrayList(1)).add(request);
+            }
+        }
+
+        this.batches.increment();
+        this.requests.add((long)batch.size());
+        this.commands.add((long)(gets.size() + hGets.size()));
+
+        try {
+            final RedisSerializer keySerializer = this.redisTemplate.getKeySerializer();
+            final RedisSerializer hashKeySerializer = this.redisTemplate.getHashKeySerializer();
+            final byte[][] rawKeys = new byte[gets.size()][];
+            int i = 0;
+            for(Object key : gets.keySet()) {
+                rawKeys[i++] = rawBytes(keySerializer, key);
+            }
+
+            List<Object> results = (List)this.redisTemplate.execute(new RedisCallback<List<Object>>() {
+                public List<Object> doInRedis(RedisConnection connection) throws DataAccessException {
+                    connection.openPipeline();
+                    boolean pipelinedClosed = false;
+
+                    List var4;
+                    try {
+                        if (rawKeys.length > 0) {
+                            connection.mGet(rawKeys);
+                        }
+
+                        for(RedisAutoBatcher.HashField field : hGets.keySet()) {
+                            connection.hGet(RedisAutoBatcher.rawBytes(keySerializer, field.key), RedisAutoBatcher.rawBytes(hashKeySerializer, field.hashKey));
+                        }
+
+                        var4 = connection.closePipeline();
+                        pipelinedClosed = true;
+                    } finally {
+                        if (!pipelinedClosed) {
+                            connection.closePipeline();
+                        }
+
+                    }
+
+                    return var4;
+                }
+            }, true);
+            this.complete(gets, hGets, results);
+        } catch (Throwable var10) {
+            for(RedisAutoBatcher.Request request : batch) {
+                request.future.completeExceptionally(var10);
+            }
+        }
+
+    }
+
+    private void complete(Map<Object, List<RedisAutoBatcher.Request>> gets, Map<RedisAutoBatcher.HashField, List<RedisAutoBatcher.Request>> hGets, List<Object> results) {
+        RedisSerializer valueSerializer = this.redisTemplate.getValueSerializer();
+        RedisSerializer hashValueSerializer = this.redisTemplate.getHashValueSerializer();
+        int index = 0;
+        if (!gets.isEmpty()) {
+            List<byte[]> values = (List)results.get(index++);
+            int i = 0;
+            for(List<RedisAutoBatcher.Request> requests : gets.values()) {
+                Object value = deserialize(valueSerializer, (byte[])values.get(i++));
+                for(RedisAutoBatcher.Request request : requests) {
+                    request.future.complete(value);
+                }
+            }
+        }
+
+        for(List<RedisAutoBatcher.Request> requests : hGets.values()) {
+            Object value = deserialize(hashValueSerializer, (byte[])results.get(index++));
+            for(RedisAutoBatcher.Request request : requests) {
+                request.future.complete(value);
+            }
+        }
+
+    }
+
+    private static byte[] rawBytes(@Nullable RedisSerializer serializer, Object value) {
+        return serializer == null && value instanceof byte[] ? (byte[])value : serializer.serialize(value);
+    }
+
+    @Nullable
+    private static Object deserialize(@Nullable RedisSerializer serializer, @Nullable byte[] value) {
+        return serializer == null ? value : serializer.deserialize(value);
+    }
+
+    public long getBatchCount() {
+        return this.batches.sum();
+    }
+
+    public long getRequestCount() {
+        return this.requests.sum();
+    }
+
+    public long getCommandCount() {
+        return this.commands.sum();
+    }
+
+	// 平均每批合并的请求数
+    public double getMeanBatchSize() {
+        long batchCount = this.batches.sum();
+        return batchCount == 0L ? 0.0D : (double)this.requests.sum() / (double)batchCount;
+    }
+
+    private static class Request {
+        final Object key;
+        final Object hashKey;
+        final boolean hash;
+        final CompletableFuture<Object> future = new CompletableFuture();
+
+        Request(Object key, @Nullable Object hashKey, boolean hash) {
+            this.key = key;
+            this.hashKey = hashKey;
+            this.hash = hash;
+        }
+    }
+
+	// HGET的去重键
+    private static class HashField {
+        final Object key;
+        final Object hashKey;
+
+        HashField(Object key, Object hashKey) {
+            this.key = key;
+            this.hashKey = hashKey;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            } else if (!(o instanceof RedisAutoBatcher.HashField)) {
+                return false;
+            } else {
+                RedisAutoBatcher.HashField that = (RedisAutoBatcher.HashField)o;
+                return this.key.equals(that.key) && this.hashKey.equals(that.hashKey);
+            }
+        }
+
+        public int hashCode() {
+            return Objects.hash(new Object[]{this.key, this.hashKey});
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.springframework.data.redis.core;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.apache.commons.logging.Log;
@@ -10,6 +11,7 @@ import org.springframework.aop.framework.ProxyFactory;
 import org.springframework.cglib.proxy.MethodProxy;
 import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.lang.Nullable;
 import org.springframework.transaction.support.ResourceHolder;
 import org.springframework.transaction.support.TransactionSynchronizationAdapter;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
@@ -18,6 +20,7 @@ import org.springframework.util.Assert;
 // redis连接工具类
 public abstract class RedisConnectionUtils {
     private static final Log log = LogFactory.getLog(RedisConnectionUtils.class);
+    private static final ThreadLocal<int[]> boundHolderCount = ThreadLocal.withInitial(() -> new int[1]);	// 当前线程绑定的连接数 为0时不用查TransactionSynchronizationManager
 
     public RedisConnectionUtils() {
     }
@@ -45,7 +48,7 @@ public abstract class RedisConnectionUtils {
 	// 获取连接核心方法
     public static RedisConnection doGetConnection(RedisConnectionFactory factory, boolean allowCreate, boolean bind, boolean enableTransactionSupport) {
         Assert.notNull(factory, "No RedisConnectionFactory specified");
-        RedisConnectionUtils.RedisConnectionHolder connHolder = (RedisConnectionUtils.RedisConnectionHolder)TransactionSynchronizationManager.getResource(factory);
+        RedisConnectionUtils.RedisConnectionHolder connHolder = getBoundHolder(factory);
         if (connHolder != null) {
             if (enableTransactionSupport) {
 				// 如果允许事务 要开启事务 并注册到事务管理器
@@ -69,6 +72,7 @@ public abstract class RedisConnectionUtils {
 
                 connHolder = new RedisConnectionUtils.RedisConnectionHolder(connectionToBind);
                 TransactionSynchronizationManager.bindResource(factory, connHolder);
+                ++boundHolderCount.get()[0];
                 if (enableTransactionSupport) {
                     potentiallyRegisterTransactionSynchronisation(connHolder, factory);
                 }
@@ -78,6 +82,22 @@ public abstract class RedisConnectionUtils {
                 return conn;
             }
         }
+    }
+
+	// 查找当前线程绑定的连接 当前线程没有绑定连接时(没有事务 没有SessionCallback的常见情况)直接返回 不查资源Map也不解包factory
+	// 计数按线程记录 其他线程的事务不影响本线程 只有本类会绑定RedisConnectionHolder 计数不会漏记 多记只会退回到正常查找
+    @Nullable
+    private static RedisConnectionUtils.RedisConnectionHolder getBoundHolder(RedisConnectionFactory factory) {
+        return boundHolderCount.get()[0] == 0 ? null : (RedisConnectionUtils.RedisConnectionHolder)TransactionSynchronizationManager.getResource(factory);
+    }
+
+	// 连接解绑后调用 同一个holder只计一次 资源只能在绑定它的线程上解绑 所以减的是同一个线程的计数
+    private static void onHolderUnbound(RedisConnectionUtils.RedisConnectionHolder connHolder) {
+        if (!connHolder.isVoid()) {
+            connHolder.unbound();
+            --boundHolderCount.get()[0];
+        }
+
     }
 
 	// 注册事务
@@ -109,7 +129,8 @@ public abstract class RedisConnectionUtils {
 	// 释放连接
     public static void releaseConnection(RedisConnection conn, RedisConnectionFactory factory) {
         if (conn != null) {
-            RedisConnectionUtils.RedisConnectionHolder connHolder = (RedisConnectionUtils.RedisConnectionHolder)TransactionSynchronizationManager.getResource(factory);
+			// 只查一次绑定的连接 后面的判断复用
+            RedisConnectionUtils.RedisConnectionHolder connHolder = getBoundHolder(factory);
 			// 如果有事务 事务完成时自动释放连接
 			if (connHolder != null && connHolder.isTransactionSyncronisationActive()) {
                 if (log.isDebugEnabled()) {
@@ -117,10 +138,11 @@ public abstract class RedisConnectionUtils {
                 }
 
             } else {
-                if (isConnectionTransactional(conn, factory) && TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+                boolean transactional = connHolder != null && conn == connHolder.getConnection();
+                if (transactional && TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
 					// 如果开启了事务 但是是只读连接 需要解绑并关闭
 					unbindConnection(factory);
-                } else if (!isConnectionTransactional(conn, factory)) {
+                } else if (!transactional) {
                     if (log.isDebugEnabled()) {
                         log.debug("Closing Redis Connection");
                     }
@@ -134,7 +156,7 @@ public abstract class RedisConnectionUtils {
 
 	// 解绑
     public static void unbindConnection(RedisConnectionFactory factory) {
-        RedisConnectionUtils.RedisConnectionHolder connHolder = (RedisConnectionUtils.RedisConnectionHolder)TransactionSynchronizationManager.unbindResourceIfPossible(factory);
+        RedisConnectionUtils.RedisConnectionHolder connHolder = boundHolderCount.get()[0] == 0 ? null : (RedisConnectionUtils.RedisConnectionHolder)TransactionSynchronizationManager.unbindResourceIfPossible(factory);
         if (connHolder != null) {
             if (connHolder.isTransactionSyncronisationActive()) {
                 if (log.isDebugEnabled()) {
@@ -145,6 +167,7 @@ public abstract class RedisConnectionUtils {
                     log.debug("Closing bound connection.");
                 }
 
+                onHolderUnbound(connHolder);
                 RedisConnection connection = connHolder.getConnection();
                 connection.close();
             }
@@ -156,7 +179,7 @@ public abstract class RedisConnectionUtils {
         if (connFactory == null) {
             return false;
         } else {
-            RedisConnectionUtils.RedisConnectionHolder connHolder = (RedisConnectionUtils.RedisConnectionHolder)TransactionSynchronizationManager.getResource(connFactory);
+            RedisConnectionUtils.RedisConnectionHolder connHolder = getBoundHolder(connFactory);
             return connHolder != null && conn == connHolder.getConnection();
         }
     }
@@ -195,7 +218,10 @@ public abstract class RedisConnectionUtils {
         }
     }
 
+	// 事务连接的拦截器 写命令进入绑定连接的MULTI队列 只读命令在另一个连接上立即执行
+	// 每个方法是否只读只解析一次 只读命令每次从连接工厂获取连接 用完立即归还 事务期间不额外占用连接池的连接
     static class ConnectionSplittingInterceptor implements MethodInterceptor, org.springframework.cglib.proxy.MethodInterceptor {
+        private static final ConcurrentHashMap<Method, Boolean> threadBoundByMethod = new ConcurrentHashMap();	// 方法与是否需要在绑定连接上执行的映射关系
         private final RedisConnectionFactory factory;
 
         public ConnectionSplittingInterceptor(RedisConnectionFactory factory) {
@@ -203,8 +229,7 @@ public abstract class RedisConnectionUtils {
         }
 
         public Object intercept(Object obj, Method method, Object[] args, MethodProxy proxy) throws Throwable {
-            RedisCommand commandToExecute = RedisCommand.failsafeCommandLookup(method.getName());
-            if (this.isPotentiallyThreadBoundCommand(commandToExecute)) {
+            if (this.isThreadBound(method)) {
                 if (RedisConnectionUtils.log.isDebugEnabled()) {
                     RedisConnectionUtils.log.debug(String.format("Invoke '%s' on bound conneciton", method.getName()));
                 }
@@ -231,6 +256,16 @@ public abstract class RedisConnectionUtils {
             }
         }
 
+        private boolean isThreadBound(Method method) {
+            Boolean threadBound = (Boolean)threadBoundByMethod.get(method);
+            if (threadBound == null) {
+                threadBound = this.isPotentiallyThreadBoundCommand(RedisCommand.failsafeCommandLookup(method.getName()));
+                threadBoundByMethod.put(method, threadBound);
+            }
+
+            return threadBound;
+        }
+
         private Object invoke(Method method, Object target, Object[] args) throws Throwable {
             try {
                 return method.invoke(target, args);
@@ -278,7 +313,9 @@ public abstract class RedisConnectionUtils {
 
                 this.connHolder.setTransactionSyncronisationActive(false);
                 this.connection.close();
-                TransactionSynchronizationManager.unbindResource(this.factory);
+				// 先解绑再标记 标记后holder为void TransactionSynchronizationManager会当作不存在
+                TransactionSynchronizationManager.unbindResourceIfPossible(this.factory);
+                RedisConnectionUtils.onHolderUnbound(this.connHolder);
             }
 
         }
@@ -0,0 +1,297 @@
+package org.springframework.data.redis.core;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationUtils;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+// 进程内近端缓存(二级缓存) 放在RedisTemplate的opsForValue前面
+// 命中时直接返回反序列化好的值 不走网络也不反序列化 适合配置类这种读多写少的key
+// 一致性: 通过本类写入/删除时发布失效消息(频道channel 消息体是类型字节+序列化后的key) 所有实例收到后删除本地副本
+//        其他途径直接修改redis不会通知 只能等TTL过期 所以TTL就是最长的不一致时间 订阅断开期间丢失的消息同理
+// 容量: 超过maxSize时用CLOCK(二次机会)淘汰 读路径不加锁
+// 本地副本按keySerializer序列化后的key字节索引(ByteBuffer包装) 和失效消息里的key逐字节比较 byte[] key或者key类型没有实现equals时失效同样生效
+// 【注意】缓存的是对象本身 调用方不能修改get返回的值
+public class RedisNearCache<K, V> implements MessageListener, InitializingBean, DisposableBean {
+    private static final byte MESSAGE_INVALIDATE_KEY = 1;				// 消息体第一个字节是类型 后面是序列化后的key
+    private static final byte MESSAGE_INVALIDATE_ALL = 2;
+
+    private final RedisTemplate<K, V> redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final String channel;
+    private final ChannelTopic topic;
+    private final ConcurrentHashMap<ByteBuffer, RedisNearCache.Entry> entries = new ConcurrentHashMap();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private int maxSize = 10000;										// 最多缓存的key数
+    private long timeToLiveNanos = TimeUnit.MINUTES.toNanos(5L);		// 写入后的存活时间
+    private boolean cacheNullValues = false;							// 是否缓存redis中不存在的key
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public RedisNearCache(RedisTemplate<K, V> redisTemplate, RedisMessageListenerContainer listenerContainer, String channel) {
+        Assert.notNull(redisTemplate, "RedisTemplate must not be null");
+        Assert.notNull(listenerContainer, "RedisMessageListenerContainer must not be null");
+        Assert.hasText(channel, "a non-empty channel is required");
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.channel = channel;
+        this.topic = new ChannelTopic(channel);
+    }
+
+    public void setMaxSize(int maxSize) {
+        Assert.isTrue(maxSize > 0, "'maxSize' must be greater than 0");
+        this.maxSize = maxSize;
+    }
+
+    public void setTimeToLive(long timeToLive, TimeUnit unit) {
+        Assert.isTrue(timeToLive > 0L, "'timeToLive' must be greater than 0");
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+    }
+
+    public void setCacheNullValues(boolean cacheNullValues) {
+        this.cacheNullValues = cacheNullValues;
+    }
+
+	// 订阅失效消息
+    public void afterPropertiesSet() {
+        this.listenerContainer.addMessageListener(this, this.topic);
+    }
+
+    public void destroy() {
+        this.listenerContainer.removeMessageListener(this, this.topic);
+        this.entries.clear();
+    }
+
+	// 读取 先查本地 未命中再查redis并放入本地
+	// 加载前先放一个占位 加载期间收到失效消息会删掉占位 加载结果就不会放入 避免把旧值缓存下来
+    @Nullable
+    public V get(K key) {
+        ByteBuffer localKey = ByteBuffer.wrap(this.rawKey(key));
+        long now = System.nanoTime();
+        RedisNearCache.Entry entry = (RedisNearCache.Entry)this.entries.get(localKey);
+        if (entry != null && entry.isLoaded() && !entry.isExpired(now)) {
+            entry.referenced = true;
+            this.hits.increment();
+            return (V)entry.value;
+        } else {
+            this.misses.increment();
+            RedisNearCache.Entry placeholder = new RedisNearCache.Entry();
+            if (entry == null) {
+                if (this.entries.putIfAbsent(localKey, placeholder) != null) {
+                    placeholder = null;
+                }
+            } else if (!this.entries.replace(localKey, entry, placeholder)) {
+                placeholder = null;
+            }
+
+            V value;
+            try {
+                value = this.redisTemplate.opsForValue().get(key);
+            } catch (RuntimeException var7) {
+                if (placeholder != null) {
+                    this.entries.remove(localKey, placeholder);
+                }
+
+                throw var7;
+            }
+
+            if (placeholder != null) {
+                if ((value != null || this.cacheNullValues) && this.entries.replace(localKey, placeholder, new RedisNearCache.Entry(value, now + this.timeToLiveNanos))) {
+                    this.evictIfNecessary();
+                } else {
+                    this.entries.remove(localKey, placeholder);
+                }
+            }
+
+            return value;
+        }
+    }
+
+	// 写入redis 然后通知所有实例(包括自己)删除本地副本 下次读取时重新加载
+    public void set(K key, V value) {
+        this.redisTemplate.opsForValue().set(key, value);
+        this.invalidate(key);
+    }
+
+    public void set(K key, V value, long timeout, TimeUnit unit) {
+        this.redisTemplate.opsForValue().set(key, value, timeout, unit);
+        this.invalidate(key);
+    }
+
+    public void delete(K key) {
+        this.redisTemplate.delete(key);
+        this.invalidate(key);
+    }
+
+    public void delete(Collection<K> keys) {
+        this.redisTemplate.delete(keys);
+        for(K key : keys) {
+            this.invalidate(key);
+        }
+
+    }
+
+	// 删除本地副本并广播失效消息 redis被其他途径修改后可以调用
+    public void invalidate(K key) {
+        byte[] rawKey = this.rawKey(key);
+        this.evictLocal(ByteBuffer.wrap(rawKey));
+        byte[] body = new byte[rawKey.length + 1];
+        body[0] = MESSAGE_INVALIDATE_KEY;
+        System.arraycopy(rawKey, 0, body, 1, rawKey.length);
+        this.publish(body);
+    }
+
+	// 清空所有实例的本地缓存
+    public void invalidateAll() {
+        this.clearLocal();
+        this.publish(new byte[]{MESSAGE_INVALIDATE_ALL});
+    }
+
+    private void publish(final byte[] body) {
+        final byte[] rawChannel = this.redisTemplate.getStringSerializer().serialize(this.channel);
+        this.redisTemplate.execute(new RedisCallback<Object>() {
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                connection.publish(rawChannel, body);
+                return null;
+            }
+        }, true);
+    }
+
+	// 收到失效消息 key部分就是本地副本的索引 不需要反序列化
+    public void onMessage(Message message, @Nullable byte[] pattern) {
+        byte[] body = message.getBody();
+        if (!SerializationUtils.isEmpty(body)) {
+            if (body[0] == MESSAGE_INVALIDATE_ALL) {
+                this.clearLocal();
+            } else if (body[0] == MESSAGE_INVALIDATE_KEY && body.length > 1) {
+                this.evictLocal(ByteBuffer.wrap(body, 1, body.length - 1).slice());
+            }
+
+        }
+    }
+
+    private byte[] rawKey(K key) {
+        Assert.notNull(key, "non null key required");
+        RedisSerializer<K> keySerializer = (RedisSerializer<K>)this.redisTemplate.getKeySerializer();
+        if (keySerializer == null) {
+            Assert.isInstanceOf(byte[].class, key, "key serializer is required for non byte[] keys");
+            return ((byte[])key).clone();		// 作为本地索引 不能被调用方修改
+        } else {
+            return keySerializer.serialize(key);
+        }
+    }
+
+    private void evictLocal(ByteBuffer key) {
+        if (this.entries.remove(key) != null) {
+            this.invalidations.increment();
+        }
+
+    }
+
+    private void clearLocal() {
+        this.invalidations.add((long)this.entries.size());
+        this.entries.clear();
+    }
+
+	// CLOCK淘汰 只有一个线程负责扫描 其他线程不等待
+	// 过期或者上一轮之后没有被访问过的条目被淘汰 被访问过的清除访问标记给第二次机会
+    private void evictIfNecessary() {
+        if (this.entries.size() > this.maxSize && this.evictionLock.tryLock()) {
+            try {
+                long now = System.nanoTime();
+                Iterator<Map.Entry<ByteBuffer, RedisNearCache.Entry>> it = this.entries.entrySet().iterator();
+
+                while(this.entries.size() > this.maxSize) {
+                    if (!it.hasNext()) {
+                        it = this.entries.entrySet().iterator();
+                        if (!it.hasNext()) {
+                            break;
+                        }
+                    }
+
+                    RedisNearCache.Entry entry = (RedisNearCache.Entry)it.next().getValue();
+                    if (!entry.referenced || entry.isExpired(now)) {
+                        it.remove();
+                        this.evictions.increment();
+                    } else {
+                        entry.referenced = false;
+                    }
+                }
+            } finally {
+                this.evictionLock.unlock();
+            }
+        }
+
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    public long getInvalidationCount() {
+        return this.invalidations.sum();
+    }
+
+	// 命中率 没有请求时为0
+    public double getHitRatio() {
+        long hitCount = this.hits.sum();
+        long requestCount = hitCount + this.misses.sum();
+        return requestCount == 0L ? 0.0D : (double)hitCount / (double)requestCount;
+    }
+
+	// 缓存条目 未加载完成的条目是占位 只用于检测加载期间的失效
+    private static class Entry {
+        private static final Object LOADING = new Object();
+        final Object value;
+        final long expiresAtNanos;
+        volatile boolean referenced = true;
+
+        Entry() {
+            this.value = LOADING;
+            this.expiresAtNanos = 0L;
+        }
+
+        Entry(@Nullable Object value, long expiresAtNanos) {
+            this.value = value;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        boolean isLoaded() {
+            return this.value != LOADING;
+        }
+
+        boolean isExpired(long now) {
+            return now - this.expiresAtNanos >= 0L;
+        }
+    }
+}
@@ -23,6 +23,11 @@ public interface RedisSerializer<T> {
         return new GenericJackson2JsonRedisSerializer();
     }
 
+    static RedisSerializer<Object> compact() {
+		// 紧凑二进制序列化器 兼容读取JDK序列化的旧数据
+        return new CompactBinaryRedisSerializer();
+    }
+
     static RedisSerializer<String> string() {
 		// 默认的string序列化器 UTF-8的
         return StringRedisSerializer.UTF_8;
@@ -1,7 +1,11 @@
 package org.springframework.data.redis.core;
 
 import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -12,6 +16,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import org.springframework.beans.factory.BeanClassLoaderAware;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.InvalidDataAccessApiUsageException;
@@ -27,6 +32,7 @@ import org.springframework.data.redis.core.script.DefaultScriptExecutor;
 import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.data.redis.core.script.ScriptExecutor;
 import org.springframework.data.redis.core.types.RedisClientInfo;
+import org.springframework.data.redis.serializer.ByteBufferRedisSerializer;
 import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
 import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.SerializationUtils;
@@ -247,6 +253,44 @@ public class RedisTemplate<K, V> extends RedisAccessor implements RedisOperation
         });
     }
 
+    public long executePipelined(RedisCallback<?> action, int maxInFlight, Consumer<Object> resultConsumer) {
+        return this.executePipelined(action, this.valueSerializer, maxInFlight, resultConsumer);
+    }
+
+	// 流式pipeline 回调里发出的命令每攒够maxInFlight个就关闭pipeline取回这一段的结果 反序列化后按顺序交给resultConsumer 再重新开启pipeline
+	// 同时只缓存一段的原始结果和反序列化结果 内存占用与命令总数无关 返回交给resultConsumer的结果数
+	// 【注意】回调里不能使用multi/exec 事务的结果会跨段
+    public long executePipelined(final RedisCallback<?> action, final RedisSerializer<?> resultSerializer, final int maxInFlight, final Consumer<Object> resultConsumer) {
+        Assert.isTrue(maxInFlight > 0, "maxInFlight must be greater than 0");
+        Assert.notNull(resultConsumer, "Result consumer must not be null");
+        return (Long)this.execute(new RedisCallback<Long>() {
+            public Long doInRedis(RedisConnection connection) throws DataAccessException {
+                StreamingPipelineInvocationHandler handler = RedisTemplate.this.new StreamingPipelineInvocationHandler(connection, resultSerializer, maxInFlight, resultConsumer);
+                Class<?>[] ifcs = ClassUtils.getAllInterfacesForClass(connection.getClass(), RedisTemplate.this.getClass().getClassLoader());
+                RedisConnection streamingConnection = (RedisConnection)Proxy.newProxyInstance(connection.getClass().getClassLoader(), ifcs, handler);
+                connection.openPipeline();
+                boolean pipelinedClosed = false;
+
+                try {
+                    Object result = action.doInRedis(streamingConnection);
+                    if (result != null) {
+                        throw new InvalidDataAccessApiUsageException("Callback cannot return a non-null value as it gets overwritten by the pipeline");
+                    }
+
+                    pipelinedClosed = true;
+                    handler.flush(false);
+                } finally {
+                    if (!pipelinedClosed && connection.isPipelined()) {
+                        connection.closePipeline();
+                    }
+
+                }
+
+                return handler.getDelivered();
+            }
+        });
+    }
+
     public <T> T execute(RedisScript<T> script, List<K> keys, Object... args) {
         return this.scriptExecutor.execute(script, keys, args);
     }
@@ -527,6 +571,48 @@ public class RedisTemplate<K, V> extends RedisAccessor implements RedisOperation
         }, true);
     }
 
+	// 大对象写入 堆内缓冲区正好覆盖整个数组时直接交给驱动 堆外缓冲区只复制一次 不经过valueSerializer
+    public void setBuffer(K key, ByteBuffer value) {
+        Assert.notNull(value, "non null value required");
+        final byte[] rawKey = this.rawKey(key);
+        final byte[] rawValue = ByteBufferRedisSerializer.toByteArray(value);
+        this.execute(new RedisCallback<Object>() {
+            public Object doInRedis(RedisConnection connection) {
+                connection.set(rawKey, rawValue);
+                return null;
+            }
+        }, true);
+    }
+
+    public void setBuffer(K key, ByteBuffer value, long timeout, TimeUnit unit) {
+        Assert.notNull(value, "non null value required");
+        final byte[] rawKey = this.rawKey(key);
+        final byte[] rawValue = ByteBufferRedisSerializer.toByteArray(value);
+        final long rawTimeout = TimeoutUtils.toMillis(timeout, unit);
+        this.execute(new RedisCallback<Object>() {
+            public Object doInRedis(RedisConnection connection) {
+                connection.pSetEx(rawKey, rawTimeout, rawValue);
+                return null;
+            }
+        }, true);
+    }
+
+	// 大对象读取 返回驱动结果数组上的只读视图 不复制 key不存在时返回null
+    public ByteBuffer getBuffer(K key) {
+        return (ByteBuffer)this.getBuffer(key, ByteBufferRedisSerializer.byteBuffer());
+    }
+
+    public <T> T getBuffer(K key, final ByteBufferRedisSerializer<T> deserializer) {
+        Assert.notNull(deserializer, "Deserializer must not be null");
+        final byte[] rawKey = this.rawKey(key);
+        return this.execute(new RedisCallback<T>() {
+            public T doInRedis(RedisConnection connection) {
+                byte[] rawValue = connection.get(rawKey);
+                return rawValue == null ? null : deserializer.deserialize(ByteBuffer.wrap(rawValue).asReadOnlyBuffer());
+            }
+        }, true);
+    }
+
     public Long getExpire(K key) {
         final byte[] rawKey = this.rawKey(key);
         return (Long)this.execute(new RedisCallback<Long>() {
@@ -869,4 +955,101 @@ public class RedisTemplate<K, V> extends RedisAccessor implements RedisOperation
     public void setBeanClassLoader(ClassLoader classLoader) {
         this.classLoader = classLoader;
     }
+
+	// 流式pipeline的连接代理 统计回调发出的命令数 达到maxInFlight时取回结果
+	// stringCommands() hashCommands()等返回的子命令接口直接操作底层连接 同样包装成代理计数
+    private class StreamingPipelineInvocationHandler implements InvocationHandler {
+        private final RedisConnection target;
+        private final RedisSerializer<?> resultSerializer;
+        private final int maxInFlight;
+        private final Consumer<Object> resultConsumer;
+        private int inFlight = 0;
+        private long delivered = 0L;
+
+        StreamingPipelineInvocationHandler(RedisConnection target, RedisSerializer<?> resultSerializer, int maxInFlight, Consumer<Object> resultConsumer) {
+            this.target = target;
+            this.resultSerializer = resultSerializer;
+            this.maxInFlight = maxInFlight;
+            this.resultConsumer = resultConsumer;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (!name.equals("openPipeline") && !name.equals("closePipeline") && !name.equals("close")) {
+                return this.invokeCommand(this.target, method, args);
+            } else {
+                throw new InvalidDataAccessApiUsageException("Pipeline is managed by executePipelined, " + name + " must not be called from the callback");
+            }
+        }
+
+        private Object invokeCommand(Object commands, Method method, Object[] args) throws Throwable {
+            Object result;
+            try {
+                result = method.invoke(commands, args);
+            } catch (InvocationTargetException var6) {
+                throw var6.getTargetException();
+            }
+
+			// pipeline中的命令都返回null 其余方法(isPipelined getNativeConnection等)有返回值 不计数
+            if (result == null) {
+                if (++this.inFlight >= this.maxInFlight) {
+                    this.flush(true);
+                }
+
+                return null;
+            } else if (method.getParameterCount() == 0 && method.getName().endsWith("Commands") && method.getReturnType().isInterface()) {
+                return Proxy.newProxyInstance(method.getReturnType().getClassLoader(), new Class<?>[]{method.getReturnType()}, new SubCommandsInvocationHandler(result));
+            } else {
+                return result;
+            }
+        }
+
+		// 关闭pipeline取回这一段的结果 reopen为true时重新开启pipeline继续接收命令
+		// 取结果或resultConsumer抛异常时也要重新开启 否则回调捕获异常继续发出的命令不再走pipeline
+        void flush(boolean reopen) {
+            try {
+                this.inFlight = 0;
+                List<Object> closePipeline = this.target.closePipeline();
+                List<Object> values = RedisTemplate.this.deserializeMixedResults(closePipeline, this.resultSerializer, RedisTemplate.this.hashKeySerializer, RedisTemplate.this.hashValueSerializer);
+                if (values != null) {
+                    for(Object value : values) {
+                        this.resultConsumer.accept(value);
+                        ++this.delivered;
+                    }
+                }
+            } finally {
+                if (reopen && !this.target.isPipelined()) {
+                    this.target.openPipeline();
+                }
+
+            }
+
+        }
+
+		// 子命令接口的代理 命令计数和连接代理共用
+        private class SubCommandsInvocationHandler implements InvocationHandler {
+            private final Object commands;
+
+            SubCommandsInvocationHandler(Object commands) {
+                this.commands = commands;
+            }
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("equals")) {
+                    return proxy == args[0];
+                } else {
+                    return name.equals("hashCode") ? System.identityHashCode(proxy) : StreamingPipelineInvocationHandler.this.invokeCommand(this.commands, method, args);
+                }
+            }
+        }
+
+        long getDelivered() {
+            return this.delivered;
+        }
+    }
 }
@@ -0,0 +1,567 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.bulk;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates {@link DocWriteRequest}s into a {@link BulkRequest} and sends it once the number of actions, the estimated size in
+ * bytes or the flush interval is reached.
+ * <p>
+ * At most {@code concurrentRequests} bulk requests are in flight at any time. A caller that would exceed the limit blocks in
+ * {@link #add(DocWriteRequest)} until a permit frees up, which gives natural back-pressure to the ingestion loop. With
+ * {@code concurrentRequests} set to 0 every flush is executed synchronously on the calling thread.
+ * <p>
+ * Items rejected by the cluster ({@link RestStatus#TOO_MANY_REQUESTS}) are resent with exponential backoff. Only the rejected items
+ * are resent, and the final {@link BulkResponse} handed to the {@link Listener} holds one response per original item in the original
+ * order. A bulk keeps its permit until all of its retries are done.
+ */
+public class BulkIndexer implements Closeable {
+
+    /**
+     * Callbacks around the execution of every bulk request.
+     */
+    public interface Listener {
+
+        /**
+         * Called before a bulk is sent.
+         */
+        void beforeBulk(long executionId, BulkRequest request);
+
+        /**
+         * Called once a bulk and all of its retries completed. Individual items may still have failed,
+         * see {@link BulkResponse#hasFailures()}.
+         */
+        void afterBulk(long executionId, BulkRequest request, BulkResponse response);
+
+        /**
+         * Called when the bulk request failed as a whole.
+         */
+        void afterBulk(long executionId, BulkRequest request, Exception failure);
+    }
+
+    /**
+     * Creates a builder for a bulk indexer that sends its requests through the given client.
+     */
+    public static Builder builder(Client client, Listener listener) {
+        Objects.requireNonNull(client, "client");
+        Objects.requireNonNull(listener, "listener");
+        return new Builder(client, listener);
+    }
+
+    public static class Builder {
+
+        private final Client client;
+        private final Listener listener;
+        private int bulkActions = 1000;
+        private ByteSizeValue bulkSize = new ByteSizeValue(5, ByteSizeUnit.MB);
+        private TimeValue flushInterval = null;
+        private int concurrentRequests = 1;
+        private TimeValue initialBackoff = TimeValue.timeValueMillis(50);
+        private TimeValue maxBackoff = TimeValue.timeValueSeconds(10);
+        private int maxRetries = 8;
+
+        private Builder(Client client, Listener listener) {
+            this.client = client;
+            this.listener = listener;
+        }
+
+        /**
+         * Number of actions after which a bulk is sent, -1 to disable. Defaults to 1000.
+         */
+        public Builder setBulkActions(int bulkActions) {
+            this.bulkActions = bulkActions;
+            return this;
+        }
+
+        /**
+         * Estimated size after which a bulk is sent, -1 bytes to disable. Defaults to 5mb.
+         */
+        public Builder setBulkSize(ByteSizeValue bulkSize) {
+            this.bulkSize = bulkSize;
+            return this;
+        }
+
+        /**
+         * Interval after which pending actions are sent regardless of the other thresholds. Not set by default.
+         */
+        public Builder setFlushInterval(TimeValue flushInterval) {
+            this.flushInterval = flushInterval;
+            return this;
+        }
+
+        /**
+         * Number of bulk requests allowed in flight at the same time. 0 executes every bulk synchronously. Defaults to 1.
+         */
+        public Builder setConcurrentRequests(int concurrentRequests) {
+            if (concurrentRequests < 0) {
+                throw new IllegalArgumentException("concurrentRequests must be >= 0 but was [" + concurrentRequests + "]");
+            }
+            this.concurrentRequests = concurrentRequests;
+            return this;
+        }
+
+        /**
+         * Backoff for rejected items: the first retry waits {@code initialBackoff}, each further retry doubles the delay up to
+         * {@code maxBackoff}. At most {@code maxRetries} retries are made, 0 disables retrying.
+         * Defaults to 50ms, 10s and 8.
+         */
+        public Builder setBackoff(TimeValue initialBackoff, TimeValue maxBackoff, int maxRetries) {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException("maxRetries must be >= 0 but was [" + maxRetries + "]");
+            }
+            this.initialBackoff = Objects.requireNonNull(initialBackoff, "initialBackoff");
+            this.maxBackoff = Objects.requireNonNull(maxBackoff, "maxBackoff");
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        public BulkIndexer build() {
+            return new BulkIndexer(this);
+        }
+    }
+
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final Listener listener;
+    private final int bulkActions;
+    private final long bulkSize;
+    private final int concurrentRequests;
+    private final TimeValue initialBackoff;
+    private final TimeValue maxBackoff;
+    private final int maxRetries;
+    private final Semaphore semaphore;
+    @Nullable
+    private final ThreadPool.Cancellable scheduledFlush;
+    private final AtomicLong executionIdGen = new AtomicLong();
+    private final Stats stats = new Stats();
+
+    private BulkRequest bulkRequest = new BulkRequest();
+    private volatile boolean closed = false;
+
+    private BulkIndexer(Builder builder) {
+        this.client = builder.client;
+        this.threadPool = builder.client.threadPool();
+        this.listener = builder.listener;
+        this.bulkActions = builder.bulkActions;
+        this.bulkSize = builder.bulkSize.getBytes();
+        this.concurrentRequests = builder.concurrentRequests;
+        this.initialBackoff = builder.initialBackoff;
+        this.maxBackoff = builder.maxBackoff;
+        this.maxRetries = builder.maxRetries;
+        this.semaphore = new Semaphore(Math.max(1, concurrentRequests));
+        if (builder.flushInterval != null) {
+            this.scheduledFlush = threadPool.scheduleWithFixedDelay(this::flushIfNeeded, builder.flushInterval, ThreadPool.Names.GENERIC);
+        } else {
+            this.scheduledFlush = null;
+        }
+    }
+
+    public BulkIndexer add(DocWriteRequest request) {
+        return add(request, null);
+    }
+
+    public BulkIndexer add(IndexRequest request) {
+        return add((DocWriteRequest) request, null);
+    }
+
+    public BulkIndexer add(UpdateRequest request) {
+        return add((DocWriteRequest) request, null);
+    }
+
+    public BulkIndexer add(DeleteRequest request) {
+        return add((DocWriteRequest) request, null);
+    }
+
+    /**
+     * Adds a request, sending the current bulk if a threshold is reached. Blocks while the maximum number of
+     * bulk requests are in flight.
+     */
+    public BulkIndexer add(DocWriteRequest request, @Nullable Object payload) {
+        BulkRequest toExecute = null;
+        synchronized (this) {
+            ensureOpen();
+            bulkRequest.add(request, payload);
+            if (isOverTheLimit()) {
+                toExecute = swapRequest();
+            }
+        }
+        if (toExecute != null) {
+            execute(toExecute);
+        }
+        return this;
+    }
+
+    /**
+     * Sends the pending actions, if any.
+     */
+    public void flush() {
+        BulkRequest toExecute;
+        synchronized (this) {
+            ensureOpen();
+            toExecute = bulkRequest.numberOfActions() > 0 ? swapRequest() : null;
+        }
+        if (toExecute != null) {
+            execute(toExecute);
+        }
+    }
+
+    private void flushIfNeeded() {
+        if (closed == false) {
+            try {
+                flush();
+            } catch (IllegalStateException e) {
+                // closed concurrently, the remaining actions are flushed by close
+            }
+        }
+    }
+
+    private boolean isOverTheLimit() {
+        return (bulkActions != -1 && bulkRequest.numberOfActions() >= bulkActions)
+            || (bulkSize != -1 && bulkRequest.estimatedSizeInBytes() >= bulkSize);
+    }
+
+    private BulkRequest swapRequest() {
+        BulkRequest current = bulkRequest;
+        bulkRequest = new BulkRequest();
+        return current;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("bulk indexer already closed");
+        }
+    }
+
+    private void execute(BulkRequest request) {
+        final long executionId = executionIdGen.incrementAndGet();
+        listener.beforeBulk(executionId, request);
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            listener.afterBulk(executionId, request, e);
+            return;
+        }
+        final CountDownLatch latch = concurrentRequests == 0 ? new CountDownLatch(1) : null;
+        final BulkExecution execution = new BulkExecution(executionId, request, () -> {
+            semaphore.release();
+            if (latch != null) {
+                latch.countDown();
+            }
+        });
+        execution.send(request, 0);
+        if (latch != null) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The delay before the given retry, doubling from the initial backoff up to the maximum backoff.
+     */
+    TimeValue backoffDelay(int retry) {
+        long delay = initialBackoff.millis() << Math.min(retry, 30);
+        return TimeValue.timeValueMillis(Math.min(delay < 0 ? Long.MAX_VALUE : delay, maxBackoff.millis()));
+    }
+
+    /**
+     * One bulk request together with its retries. Holds the merged item responses in original order.
+     */
+    private class BulkExecution {
+        private final long executionId;
+        private final BulkRequest original;
+        private final Runnable onDone;
+        private final long startNanos = System.nanoTime();
+        private final BulkItemResponse[] responses;
+        private int[] slots;            // position in the original request of every item of the request currently in flight
+        private long tookInMillis = 0;
+
+        BulkExecution(long executionId, BulkRequest original, Runnable onDone) {
+            this.executionId = executionId;
+            this.original = original;
+            this.onDone = onDone;
+            this.responses = new BulkItemResponse[original.numberOfActions()];
+            this.slots = new int[responses.length];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = i;
+            }
+        }
+
+        void send(BulkRequest request, int attempt) {
+            try {
+                client.bulk(request, new ActionListener<BulkResponse>() {
+                    @Override
+                    public void onResponse(BulkResponse response) {
+                        onBulkResponse(response, attempt);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        onBulkFailure(e, attempt);
+                    }
+                });
+            } catch (Exception e) {
+                // e.g. no node available or rejected before it was sent, the listener is not notified
+                onBulkFailure(e, attempt);
+            }
+        }
+
+        private void onBulkFailure(Exception e, int attempt) {
+            if (attempt > 0) {
+                // a retry failed as a whole, the rejected items keep their rejection from the previous attempt
+                complete();
+                return;
+            }
+            try {
+                stats.onFailure(original, System.nanoTime() - startNanos);
+                listener.afterBulk(executionId, original, e);
+            } finally {
+                onDone.run();
+            }
+        }
+
+        private void onBulkResponse(BulkResponse response, int attempt) {
+            tookInMillis += response.getTookInMillis();
+            List<Integer> rejected = new ArrayList<>();
+            BulkItemResponse[] items = response.getItems();
+            for (int i = 0; i < items.length; i++) {
+                BulkItemResponse item = items[i];
+                int slot = slots[i];
+                responses[slot] = renumber(item, slot);
+                if (item.isFailed() && item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS) {
+                    rejected.add(slot);
+                }
+            }
+
+            if (rejected.isEmpty() || attempt >= maxRetries) {
+                complete();
+                return;
+            }
+
+            BulkRequest retry = new BulkRequest();
+            retry.timeout(original.timeout());
+            retry.waitForActiveShards(original.waitForActiveShards());
+            retry.setRefreshPolicy(original.getRefreshPolicy());
+            int[] retrySlots = new int[rejected.size()];
+            for (int i = 0; i < retrySlots.length; i++) {
+                retrySlots[i] = rejected.get(i);
+                retry.add(original.requests().get(retrySlots[i]));
+            }
+            slots = retrySlots;
+            stats.onRetry(retrySlots.length);
+            try {
+                threadPool.schedule(backoffDelay(attempt), ThreadPool.Names.GENERIC, () -> send(retry, attempt + 1));
+            } catch (Exception e) {
+                // the thread pool is shutting down, report what we have
+                complete();
+            }
+        }
+
+        private void complete() {
+            try {
+                BulkResponse merged = new BulkResponse(responses, tookInMillis);
+                stats.onResponse(original, merged, System.nanoTime() - startNanos);
+                listener.afterBulk(executionId, original, merged);
+            } finally {
+                onDone.run();
+            }
+        }
+    }
+
+    private static BulkItemResponse renumber(BulkItemResponse item, int id) {
+        if (item.getItemId() == id) {
+            return item;
+        } else if (item.isFailed()) {
+            return new BulkItemResponse(id, item.getOpType(), item.getFailure());
+        } else {
+            return new BulkItemResponse(id, item.getOpType(), (DocWriteResponse) item.getResponse());
+        }
+    }
+
+    /**
+     * Flushes the pending actions and waits up to the given time for all in-flight bulks, including their retries, to complete.
+     *
+     * @return {@code true} if all bulks completed, {@code false} if the waiting time elapsed first
+     */
+    public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+        BulkRequest toExecute;
+        synchronized (this) {
+            if (closed) {
+                return true;
+            }
+            closed = true;
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel();
+            }
+            toExecute = bulkRequest.numberOfActions() > 0 ? swapRequest() : null;
+        }
+        if (toExecute != null) {
+            execute(toExecute);
+        }
+        int permits = Math.max(1, concurrentRequests);
+        if (semaphore.tryAcquire(permits, timeout, unit)) {
+            semaphore.release(permits);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Flushes the pending actions and returns without waiting for in-flight bulks.
+     */
+    @Override
+    public void close() {
+        try {
+            awaitClose(0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Stats stats() {
+        return stats;
+    }
+
+    /**
+     * Counters over all bulks sent by this indexer. A bulk is counted once, when it and all of its retries completed.
+     */
+    public static class Stats {
+        private final long startNanos = System.nanoTime();
+        private final LongAdder bulks = new LongAdder();
+        private final LongAdder failedBulks = new LongAdder();
+        private final LongAdder actions = new LongAdder();
+        private final LongAdder failedActions = new LongAdder();
+        private final LongAdder retriedActions = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        Stats() {
+        }
+
+        void onResponse(BulkRequest request, BulkResponse response, long elapsedNanos) {
+            record(request, elapsedNanos);
+            if (response.hasFailures()) {
+                long failed = 0;
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed()) {
+                        failed++;
+                    }
+                }
+                failedActions.add(failed);
+            }
+        }
+
+        void onFailure(BulkRequest request, long elapsedNanos) {
+            record(request, elapsedNanos);
+            failedBulks.increment();
+            failedActions.add(request.numberOfActions());
+        }
+
+        void onRetry(int count) {
+            retriedActions.add(count);
+        }
+
+        private void record(BulkRequest request, long elapsedNanos) {
+            bulks.increment();
+            actions.add(request.numberOfActions());
+            bytes.add(request.estimatedSizeInBytes());
+            latencyNanos.add(elapsedNanos);
+            maxLatencyNanos.accumulateAndGet(elapsedNanos, Math::max);
+        }
+
+        public long getBulkCount() {
+            return bulks.sum();
+        }
+
+        public long getFailedBulkCount() {
+            return failedBulks.sum();
+        }
+
+        public long getActionCount() {
+            return actions.sum();
+        }
+
+        public long getFailedActionCount() {
+            return failedActions.sum();
+        }
+
+        public long getRetriedActionCount() {
+            return retriedActions.sum();
+        }
+
+        public ByteSizeValue getBytes() {
+            return new ByteSizeValue(bytes.sum());
+        }
+
+        /**
+         * Mean time from sending a bulk until it and its retries completed.
+         */
+        public TimeValue getAverageLatency() {
+            long count = bulks.sum();
+            return TimeValue.timeValueNanos(count == 0 ? 0 : latencyNanos.sum() / count);
+        }
+
+        public TimeValue getMaxLatency() {
+            return TimeValue.timeValueNanos(maxLatencyNanos.get());
+        }
+
+        /**
+         * Completed actions per second since the indexer was built.
+         */
+        public double getActionsPerSecond() {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            return elapsedNanos <= 0 ? 0 : actions.sum() * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "bulks [" + getBulkCount() + "], failed bulks [" + getFailedBulkCount() + "], actions [" + getActionCount()
+                + "], failed actions [" + getFailedActionCount() + "], retried actions [" + getRetriedActionCount() + "], bytes ["
+                + getBytes() + "], avg latency [" + getAverageLatency() + "], max latency [" + getMaxLatency() + "]";
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.action.bulk;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reusable parser for the common shape of JSON bulk action/metadata lines, e.g.
+ * <code>{"index":{"_index":"test","_type":"doc","_id":"1"}}</code>, that works directly on the line's bytes instead of creating
+ * an {@link org.elasticsearch.common.xcontent.XContentParser} per line.
+ * <p>
+ * Only flat parameter objects whose values are unescaped strings, numbers, booleans or nulls are handled. For anything else
+ * {@link #parse(BytesReference)} returns {@code false} and the caller falls back to the regular parser, which also produces the
+ * error messages for malformed lines. Like the regular parser, nothing after the parameters object is inspected.
+ */
+final class BulkMetadataLineParser {
+
+    private String action;
+    private int size;
+    private String[] names = new String[8];
+    private String[] values = new String[8];
+    private boolean[] integral = new boolean[8];
+
+    private byte[] bytes;
+    private int pos;
+    private int end;
+
+    /**
+     * Parses the given line, returns {@code false} if the line is not in the supported shape.
+     */
+    boolean parse(BytesReference line) {
+        BytesRef ref = line.toBytesRef();
+        bytes = ref.bytes;
+        pos = ref.offset;
+        end = ref.offset + ref.length;
+        size = 0;
+        action = null;
+        try {
+            return parseLine();
+        } finally {
+            bytes = null;
+        }
+    }
+
+    /**
+     * Reads only the action name of the given line. Returns the empty string for a blank line and {@code null} if the line does
+     * not start like a supported action/metadata line.
+     */
+    static String action(BytesReference line) {
+        BulkMetadataLineParser parser = new BulkMetadataLineParser();
+        BytesRef ref = line.toBytesRef();
+        parser.bytes = ref.bytes;
+        parser.pos = ref.offset;
+        parser.end = ref.offset + ref.length;
+        if (parser.skipWhitespace() == false) {
+            return "";
+        }
+        if (parser.bytes[parser.pos++] != '{' || parser.skipWhitespace() == false || parser.bytes[parser.pos] != '"') {
+            return null;
+        }
+        return parser.readString();
+    }
+
+    private boolean parseLine() {
+        if (skipWhitespace() == false || bytes[pos++] != '{') {
+            return false;
+        }
+        if (skipWhitespace() == false || bytes[pos] != '"') {
+            return false;
+        }
+        action = readString();
+        if (action == null || expect(':') == false || skipWhitespace() == false || bytes[pos++] != '{') {
+            return false;
+        }
+        if (skipWhitespace() == false) {
+            return false;
+        }
+        if (bytes[pos] == '}') {
+            return true;
+        }
+        while (true) {
+            if (bytes[pos] != '"') {
+                return false;
+            }
+            String name = readString();
+            if (name == null || expect(':') == false || skipWhitespace() == false || readValue(name) == false) {
+                return false;
+            }
+            if (skipWhitespace() == false) {
+                return false;
+            }
+            byte b = bytes[pos++];
+            if (b == '}') {
+                return true;
+            } else if (b != ',' || skipWhitespace() == false) {
+                return false;
+            }
+        }
+    }
+
+    private boolean readValue(String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                // let the regular parser report the duplicate
+                return false;
+            }
+        }
+        byte b = bytes[pos];
+        if (b == '"') {
+            String value = readString();
+            return value != null && add(name, value, isIntegral(value));
+        } else if (b == '-' || (b >= '0' && b <= '9')) {
+            int start = pos++;
+            boolean isIntegral = true;
+            while (pos < end) {
+                b = bytes[pos];
+                if (b >= '0' && b <= '9') {
+                    pos++;
+                } else if (b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-') {
+                    isIntegral = false;
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            if (pos - start == 1 && bytes[start] == '-') {
+                return false;
+            }
+            return add(name, new String(bytes, start, pos - start, StandardCharsets.US_ASCII), isIntegral);
+        } else if (matchLiteral("true")) {
+            return add(name, "true", false);
+        } else if (matchLiteral("false")) {
+            return add(name, "false", false);
+        } else if (matchLiteral("null")) {
+            // null values are ignored, same as the regular parser
+            return true;
+        }
+        return false;
+    }
+
+    private boolean add(String name, String value, boolean isIntegral) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size << 1);
+            values = Arrays.copyOf(values, size << 1);
+            integral = Arrays.copyOf(integral, size << 1);
+        }
+        names[size] = name;
+        values[size] = value;
+        integral[size] = isIntegral;
+        size++;
+        return true;
+    }
+
+    private static boolean isIntegral(String value) {
+        int length = value.length();
+        if (length == 0 || length > 20) {
+            return false;
+        }
+        for (int i = value.charAt(0) == '-' ? 1 : 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchLiteral(String literal) {
+        int length = literal.length();
+        if (end - pos < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[pos + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        pos += length;
+        return true;
+    }
+
+    /**
+     * Reads a string starting at the opening quote, returns {@code null} for escaped or unterminated strings.
+     */
+    private String readString() {
+        int start = ++pos;
+        while (pos < end) {
+            byte b = bytes[pos];
+            if (b == '"') {
+                String value = new String(bytes, start, pos - start, StandardCharsets.UTF_8);
+                pos++;
+                return value;
+            } else if (b == '\\') {
+                return null;
+            }
+            pos++;
+        }
+        return null;
+    }
+
+    private boolean expect(char c) {
+        return skipWhitespace() && bytes[pos++] == c;
+    }
+
+    /**
+     * Skips whitespace, returns {@code false} if the end of the line was reached.
+     */
+    private boolean skipWhitespace() {
+        while (pos < end) {
+            byte b = bytes[pos];
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return true;
+            }
+            pos++;
+        }
+        return false;
+    }
+
+    String action() {
+        return action;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String name(int i) {
+        return names[i];
+    }
+
+    String value(int i) {
+        return values[i];
+    }
+
+    boolean isIntegral(int i) {
+        return integral[i];
+    }
+}
@@ -19,6 +19,8 @@
 
 package org.elasticsearch.action.bulk;
 
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestValidationException;
 import org.elasticsearch.action.CompositeIndicesRequest;
@@ -49,10 +51,15 @@ import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static org.elasticsearch.action.ValidateActions.addValidationError;
 
@@ -69,6 +76,12 @@ public class BulkRequest extends ActionRequest implements CompositeIndicesReques
 
     private static final int REQUEST_OVERHEAD = 50;
 
+    /**
+     * The smallest chunk a body is split into by {@link #add(BytesReference, String, String, String, String[], FetchSourceContext,
+     * String, Object, boolean, XContentType, ForkJoinPool)}.
+     */
+    public static final int PARALLEL_PARSE_CHUNK_SIZE = 1024 * 1024;
+
     private static final ParseField INDEX = new ParseField("_index");
     private static final ParseField TYPE = new ParseField("_type");
     private static final ParseField ID = new ParseField("_id");
@@ -82,6 +95,14 @@ public class BulkRequest extends ActionRequest implements CompositeIndicesReques
     private static final ParseField FIELDS = new ParseField("fields");
     private static final ParseField SOURCE = new ParseField("_source");
 
+    private static final Set<String> SOURCE_NAMES = namesOf(SOURCE);
+    private static final Set<String> VERSION_NAMES = namesOf(VERSION);
+    private static final Set<String> RETRY_ON_CONFLICT_NAMES = namesOf(RETRY_ON_CONFLICT);
+
+    private static Set<String> namesOf(ParseField field) {
+        return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(field.getAllNamesIncludedDeprecated())));
+    }
+
     /**
      * Requests that are part of this request. It is only possible to add things that are both {@link ActionRequest}s and
      * {@link WriteRequest}s to this but java doesn't support syntax to declare that everything in the array has both types so we declare
@@ -290,28 +311,367 @@ public class BulkRequest extends ActionRequest implements CompositeIndicesReques
     public BulkRequest add(BytesReference data, @Nullable String defaultIndex, @Nullable String defaultType, @Nullable String
         defaultRouting, @Nullable String[] defaultFields, @Nullable FetchSourceContext defaultFetchSourceContext, @Nullable String
         defaultPipeline, @Nullable Object payload, boolean allowExplicitIndex, XContentType xContentType) throws IOException {
+        parse(data, 0, defaultIndex, defaultType, defaultRouting, defaultFields, defaultFetchSourceContext, defaultPipeline, payload,
+            allowExplicitIndex, xContentType);
+        return this;
+    }
+
+    /**
+     * Adds a framed data in binary format, parsing large bodies on the given pool.
+     * <p>
+     * The body is split at action boundaries into chunks of at least {@link #PARALLEL_PARSE_CHUNK_SIZE} bytes which are parsed
+     * concurrently, the resulting requests are added in the order in which they appear in the body. Parsing errors report the same
+     * line numbers as {@link #add(BytesReference, String, String, String, String[], FetchSourceContext, String, Object, boolean,
+     * XContentType)}, and as with that method the requests of the lines before the first failing line are added before the error is
+     * thrown. Bodies too small to be split are parsed on the calling thread. Note that deprecation warnings emitted while parsing on
+     * the pool are not recorded in the calling thread's context.
+     */
+    public BulkRequest add(BytesReference data, @Nullable String defaultIndex, @Nullable String defaultType, @Nullable String
+        defaultRouting, @Nullable String[] defaultFields, @Nullable FetchSourceContext defaultFetchSourceContext, @Nullable String
+        defaultPipeline, @Nullable Object payload, boolean allowExplicitIndex, XContentType xContentType, ForkJoinPool pool)
+        throws IOException {
+        Objects.requireNonNull(pool, "'pool' must not be null");
+        List<Chunk> chunks = split(data, xContentType);
+        if (chunks.size() < 2) {
+            return add(data, defaultIndex, defaultType, defaultRouting, defaultFields, defaultFetchSourceContext, defaultPipeline, payload,
+                allowExplicitIndex, xContentType);
+        }
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>(chunks.size());
+        for (Chunk chunk : chunks) {
+            tasks.add(pool.submit(() -> {
+                try {
+                    chunk.requests.parse(chunk.data, chunk.line, defaultIndex, defaultType, defaultRouting, defaultFields,
+                        defaultFetchSourceContext, defaultPipeline, payload, allowExplicitIndex, xContentType);
+                } catch (IOException | RuntimeException e) {
+                    chunk.failure = e;
+                }
+                return chunk;
+            }));
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            Chunk chunk;
+            try {
+                chunk = tasks.get(i).get();
+            } catch (InterruptedException e) {
+                cancel(tasks, i);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while parsing bulk request", e);
+            } catch (ExecutionException e) {
+                cancel(tasks, i);
+                throw new IllegalStateException("failed to parse bulk request", e.getCause());
+            }
+            for (DocWriteRequest request : chunk.requests.requests) {
+                add(request, payload);
+            }
+            if (chunk.failure != null) {
+                cancel(tasks, i);
+                if (chunk.failure instanceof IOException) {
+                    throw (IOException) chunk.failure;
+                }
+                throw (RuntimeException) chunk.failure;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * A part of a bulk body that starts with an action/metadata line, and the requests parsed from it.
+     */
+    private static final class Chunk {
+        final BytesReference data;
+        final int line;                 // the number of lines before the chunk
+        final BulkRequest requests = new BulkRequest();
+        Exception failure;
+
+        Chunk(BytesReference data, int line) {
+            this.data = data;
+            this.line = line;
+        }
+    }
+
+    private static void cancel(List<ForkJoinTask<Chunk>> tasks, int completed) {
+        for (int i = completed + 1; i < tasks.size(); i++) {
+            tasks.get(i).cancel(false);
+        }
+    }
+
+    /**
+     * Splits the body at action boundaries. Finding the boundaries only needs the action name of every action/metadata line, since
+     * that decides whether a source line follows, so this pass is much cheaper than parsing. If an action cannot be determined the
+     * rest of the body ends up in the last chunk, where the full parser reports the problem at the right line.
+     */
+    private static List<Chunk> split(BytesReference data, XContentType xContentType) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        int length = data.length();
+        if (length < 2 * PARALLEL_PARSE_CHUNK_SIZE) {
+            return chunks;
+        }
         XContent xContent = xContentType.xContent();
+        MarkerScanner markers = new MarkerScanner(data, xContent.streamSeparator());
+        int chunkStart = 0;
+        int chunkLine = 0;
         int line = 0;
         int from = 0;
-        int length = data.length();
+        while (true) {
+            if (from - chunkStart >= PARALLEL_PARSE_CHUNK_SIZE && length - from >= PARALLEL_PARSE_CHUNK_SIZE) {
+                chunks.add(new Chunk(data.slice(chunkStart, from - chunkStart), chunkLine));
+                chunkStart = from;
+                chunkLine = line;
+            }
+            // the separator is searched before the action is looked at, a missing one is reported by the parser of the last chunk
+            int nextMarker = findNextMarker(markers, from);
+            if (nextMarker == -1) {
+                break;
+            }
+            String action = actionOf(data.slice(from, nextMarker - from), xContentType);
+            if (action == null) {
+                break;
+            }
+            line++;
+            from = nextMarker + 1;
+            if (action.isEmpty() == false && "delete".equals(action) == false) {
+                nextMarker = findNextMarker(markers, from);
+                if (nextMarker == -1) {
+                    break;
+                }
+                line++;
+                from = nextMarker + 1;
+            }
+        }
+        chunks.add(new Chunk(data.slice(chunkStart, length - chunkStart), chunkLine));
+        return chunks;
+    }
+
+    private static int findNextMarker(MarkerScanner markers, int from) throws IOException {
+        try {
+            return markers.next(from);
+        } catch (IllegalArgumentException e) {
+            // unterminated last line
+            return -1;
+        }
+    }
+
+    /**
+     * The action of the given action/metadata line, the empty string for an empty line or {@code null} if it can't be determined.
+     */
+    private static String actionOf(BytesReference metadataLine, XContentType xContentType) {
+        if (XContentType.JSON == xContentType) {
+            String action = BulkMetadataLineParser.action(metadataLine);
+            if (action != null) {
+                return action;
+            }
+        }
+        // EMPTY is safe here because we never call namedObject
+        try (XContentParser parser = xContentType.xContent().createParser(NamedXContentRegistry.EMPTY, metadataLine)) {
+            XContentParser.Token token = parser.nextToken();
+            if (token == null) {
+                return "";
+            }
+            if (token == XContentParser.Token.START_OBJECT && parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                return parser.currentName();
+            }
+            return null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void parse(BytesReference data, int line, @Nullable String defaultIndex, @Nullable String defaultType,
+                       @Nullable String defaultRouting, @Nullable String[] defaultFields,
+                       @Nullable FetchSourceContext defaultFetchSourceContext, @Nullable String defaultPipeline,
+                       @Nullable Object payload, boolean allowExplicitIndex, XContentType xContentType) throws IOException {
+        XContent xContent = xContentType.xContent();
+        int from = 0;
         byte marker = xContent.streamSeparator();
+        // the separators are found in a single pass over the pages of the body
+        MarkerScanner markers = new MarkerScanner(data, marker);
+        // metadata lines of the usual shape are parsed straight from the bytes, one parser is reused for the whole body
+        BulkMetadataLineParser metadataLineParser = XContentType.JSON == xContentType ? new BulkMetadataLineParser() : null;
+        ActionMetadata metadata = new ActionMetadata();
         while (true) {
-            int nextMarker = findNextMarker(marker, from, data, length);
+            int nextMarker = markers.next(from);
             if (nextMarker == -1) {
                 break;
             }
             line++;
 
             // now parse the action
-            // EMPTY is safe here because we never call namedObject
-            try (XContentParser parser = xContent.createParser(NamedXContentRegistry.EMPTY, data.slice(from, nextMarker - from))) {
+            BytesReference metadataLine = data.slice(from, nextMarker - from);
+            // move pointers
+            from = nextMarker + 1;
+            metadata.reset(defaultIndex, defaultType, defaultRouting, defaultFields, defaultFetchSourceContext, defaultPipeline);
+            if (metadataLineParser == null || metadata.parse(metadataLineParser, metadataLine, line, allowExplicitIndex) == false) {
+                metadata.reset(defaultIndex, defaultType, defaultRouting, defaultFields, defaultFetchSourceContext, defaultPipeline);
+                if (metadata.parse(xContent, metadataLine, line, allowExplicitIndex) == false) {
+                    continue;
+                }
+            }
+
+            String action = metadata.action;
+            String index = metadata.index;
+            String type = metadata.type;
+            String id = metadata.id;
+            String routing = metadata.routing;
+            String parent = metadata.parent;
+            FetchSourceContext fetchSourceContext = metadata.fetchSourceContext;
+            String[] fields = metadata.fields;
+            String opType = metadata.opType;
+            long version = metadata.version;
+            VersionType versionType = metadata.versionType;
+            int retryOnConflict = metadata.retryOnConflict;
+            String pipeline = metadata.pipeline;
+
+            if ("delete".equals(action)) {
+                add(new DeleteRequest(index, type, id).routing(routing).parent(parent).version(version).versionType(versionType), payload);
+            } else {
+                nextMarker = markers.next(from);
+                if (nextMarker == -1) {
+                    break;
+                }
+                line++;
+
+                // we use internalAdd so we don't fork here, this allows us not to copy over the big byte array to small chunks
+                // of index request.
+                if ("index".equals(action)) {
+                    if (opType == null) {
+                        internalAdd(new IndexRequest(index, type, id).routing(routing).parent(parent).version(version).versionType(versionType)
+                                .setPipeline(pipeline)
+                                .source(sliceTrimmingCarriageReturn(data, from, nextMarker,xContentType), xContentType), payload);
+                    } else {
+                        internalAdd(new IndexRequest(index, type, id).routing(routing).parent(parent).version(version).versionType(versionType)
+                                .create("create".equals(opType)).setPipeline(pipeline)
+                                .source(sliceTrimmingCarriageReturn(data, from, nextMarker, xContentType), xContentType), payload);
+                    }
+                } else if ("create".equals(action)) {
+                    internalAdd(new IndexRequest(index, type, id).routing(routing).parent(parent).version(version).versionType(versionType)
+                            .create(true).setPipeline(pipeline)
+                            .source(sliceTrimmingCarriageReturn(data, from, nextMarker, xContentType), xContentType), payload);
+                } else if ("update".equals(action)) {
+                    UpdateRequest updateRequest = new UpdateRequest(index, type, id).routing(routing).parent(parent).retryOnConflict(retryOnConflict)
+                            .version(version).versionType(versionType)
+                            .routing(routing)
+                            .parent(parent);
+                    // EMPTY is safe here because we never call namedObject
+                    try (XContentParser sliceParser = xContent.createParser(NamedXContentRegistry.EMPTY,
+                                                    sliceTrimmingCarriageReturn(data, from, nextMarker, xContentType))) {
+                        updateRequest.fromXContent(sliceParser);
+                    }
+                    if (fetchSourceContext != null) {
+                        updateRequest.fetchSource(fetchSourceContext);
+                    }
+                    if (fields != null) {
+                        updateRequest.fields(fields);
+                    }
+
+                    IndexRequest upsertRequest = updateRequest.upsertRequest();
+                    if (upsertRequest != null) {
+                        upsertRequest.version(version);
+                        upsertRequest.versionType(versionType);
+                        upsertRequest.setPipeline(defaultPipeline);
+                    }
+                    IndexRequest doc = updateRequest.doc();
+                    if (doc != null) {
+                        doc.version(version);
+                        doc.versionType(versionType);
+                    }
+
+                    internalAdd(updateRequest, payload);
+                }
                 // move pointers
                 from = nextMarker + 1;
+            }
+        }
+    }
+
+    /**
+     * The parsed content of one action/metadata line, reused for every line of a bulk body.
+     */
+    private static final class ActionMetadata {
+        String action;
+        String index;
+        String type;
+        String id;
+        String routing;
+        String parent;
+        FetchSourceContext fetchSourceContext;
+        String[] fields;
+        String opType;
+        long version;
+        VersionType versionType;
+        int retryOnConflict;
+        String pipeline;
+
+        void reset(String defaultIndex, String defaultType, String defaultRouting, String[] defaultFields,
+                   FetchSourceContext defaultFetchSourceContext, String defaultPipeline) {
+            action = null;
+            index = defaultIndex;
+            type = defaultType;
+            id = null;
+            routing = defaultRouting;
+            parent = null;
+            fetchSourceContext = defaultFetchSourceContext;
+            fields = defaultFields;
+            opType = null;
+            version = Versions.MATCH_ANY;
+            versionType = VersionType.INTERNAL;
+            retryOnConflict = 0;
+            pipeline = defaultPipeline;
+        }
+
+        /**
+         * Takes the line from the byte level parser. Returns {@code false} if the line was not in the supported shape, or uses a
+         * parameter that needs the full parser, in which case nothing has been applied.
+         */
+        boolean parse(BulkMetadataLineParser parser, BytesReference metadataLine, int line, boolean allowExplicitIndex) {
+            if (parser.parse(metadataLine) == false) {
+                return false;
+            }
+            for (int i = 0; i < parser.size(); i++) {
+                String name = parser.name(i);
+                if (SOURCE_NAMES.contains(name)) {
+                    return false;
+                }
+                if (VERSION_NAMES.contains(name) || RETRY_ON_CONFLICT_NAMES.contains(name)) {
+                    // out of range or non integral numbers are left to the regular parser and its error handling
+                    if (parser.isIntegral(i) == false) {
+                        return false;
+                    }
+                    try {
+                        if (VERSION_NAMES.contains(name)) {
+                            Long.parseLong(parser.value(i));
+                        } else {
+                            Integer.parseInt(parser.value(i));
+                        }
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            action = parser.action();
+            for (int i = 0; i < parser.size(); i++) {
+                String name = parser.name(i);
+                String value = parser.value(i);
+                if (VERSION.match(name)) {
+                    version = Long.parseLong(value);
+                } else if (RETRY_ON_CONFLICT.match(name)) {
+                    retryOnConflict = Integer.parseInt(value);
+                } else {
+                    setValue(name, value, line, allowExplicitIndex);
+                }
+            }
+            return true;
+        }
 
+        /**
+         * Parses the line with a full {@link XContentParser}. Returns {@code false} for an empty line.
+         */
+        boolean parse(XContent xContent, BytesReference metadataLine, int line, boolean allowExplicitIndex) throws IOException {
+            // EMPTY is safe here because we never call namedObject
+            try (XContentParser parser = xContent.createParser(NamedXContentRegistry.EMPTY, metadataLine)) {
                 // Move to START_OBJECT
                 XContentParser.Token token = parser.nextToken();
                 if (token == null) {
-                    continue;
+                    return false;
                 }
                 if (token != XContentParser.Token.START_OBJECT) {
                     throw new IllegalArgumentException("Malformed action/metadata line [" + line + "], expected "
@@ -323,20 +683,7 @@ public class BulkRequest extends ActionRequest implements CompositeIndicesReques
                     throw new IllegalArgumentException("Malformed action/metadata line [" + line + "], expected "
                         + XContentParser.Token.FIELD_NAME + " but found [" + token + "]");
                 }
-                String action = parser.currentName();
-
-                String index = defaultIndex;
-                String type = defaultType;
-                String id = null;
-                String routing = defaultRouting;
-                String parent = null;
-                FetchSourceContext fetchSourceContext = defaultFetchSourceContext;
-                String[] fields = defaultFields;
-                String opType = null;
-                long version = Versions.MATCH_ANY;
-                VersionType versionType = VersionType.INTERNAL;
-                int retryOnConflict = 0;
-                String pipeline = defaultPipeline;
+                action = parser.currentName();
 
                 // at this stage, next token can either be END_OBJECT (and use default index and type, with auto generated id)
                 // or START_OBJECT which will have another set of parameters
@@ -348,35 +695,14 @@ public class BulkRequest extends ActionRequest implements CompositeIndicesReques
                         if (token == XContentParser.Token.FIELD_NAME) {
                             currentFieldName = parser.currentName();
                         } else if (token.isValue()) {
-                            if (INDEX.match(currentFieldName)){
-                                if (!allowExplicitIndex) {
-                                    throw new IllegalArgumentException("explicit index in bulk is not allowed");
-                                }
-                                index = parser.text();
-                            } else if (TYPE.match(currentFieldName)) {
-                                type = parser.text();
-                            } else if (ID.match(currentFieldName)) {
-                                id = parser.text();
-                            } else if (ROUTING.match(currentFieldName)) {
-                                routing = parser.text();
-                            } else if (PARENT.match(currentFieldName)) {
-                                parent = parser.text();
-                            } else if (OP_TYPE.match(currentFieldName)) {
-                                opType = parser.text();
-                            } else if (VERSION.match(currentFieldName)) {
+                            if (VERSION.match(currentFieldName)) {
                                 version = parser.longValue();
-                            } else if (VERSION_TYPE.match(currentFieldName)) {
-                                versionType = VersionType.fromString(parser.text());
                             } else if (RETRY_ON_CONFLICT.match(currentFieldName)) {
                                 retryOnConflict = parser.intValue();
-                            } else if (PIPELINE.match(currentFieldName)) {
-                                pipeline = parser.text();
-                            } else if (FIELDS.match(currentFieldName)) {
-                                throw new IllegalArgumentException("Action/metadata line [" + line + "] contains a simple value for parameter [fields] while a list is expected");
                             } else if (SOURCE.match(currentFieldName)) {
                                 fetchSourceContext = FetchSourceContext.fromXContent(parser);
                             } else {
-                                throw new IllegalArgumentException("Action/metadata line [" + line + "] contains an unknown parameter [" + currentFieldName + "]");
+                                setValue(currentFieldName, parser.text(), line, allowExplicitIndex);
                             }
                         } else if (token == XContentParser.Token.START_ARRAY) {
                             if (FIELDS.match(currentFieldName)) {
@@ -396,69 +722,94 @@ public class BulkRequest extends ActionRequest implements CompositeIndicesReques
                     throw new IllegalArgumentException("Malformed action/metadata line [" + line + "], expected " + XContentParser.Token.START_OBJECT
                             + " or " + XContentParser.Token.END_OBJECT + " but found [" + token + "]");
                 }
+                return true;
+            }
+        }
 
-                if ("delete".equals(action)) {
-                    add(new DeleteRequest(index, type, id).routing(routing).parent(parent).version(version).versionType(versionType), payload);
-                } else {
-                    nextMarker = findNextMarker(marker, from, data, length);
-                    if (nextMarker == -1) {
-                        break;
-                    }
-                    line++;
-
-                    // we use internalAdd so we don't fork here, this allows us not to copy over the big byte array to small chunks
-                    // of index request.
-                    if ("index".equals(action)) {
-                        if (opType == null) {
-                            internalAdd(new IndexRequest(index, type, id).routing(routing).parent(parent).version(version).versionType(versionType)
-                                    .setPipeline(pipeline)
-                                    .source(sliceTrimmingCarriageReturn(data, from, nextMarker,xContentType), xContentType), payload);
-                        } else {
-                            internalAdd(new IndexRequest(index, type, id).routing(routing).parent(parent).version(version).versionType(versionType)
-                                    .create("create".equals(opType)).setPipeline(pipeline)
-                                    .source(sliceTrimmingCarriageReturn(data, from, nextMarker, xContentType), xContentType), payload);
-                        }
-                    } else if ("create".equals(action)) {
-                        internalAdd(new IndexRequest(index, type, id).routing(routing).parent(parent).version(version).versionType(versionType)
-                                .create(true).setPipeline(pipeline)
-                                .source(sliceTrimmingCarriageReturn(data, from, nextMarker, xContentType), xContentType), payload);
-                    } else if ("update".equals(action)) {
-                        UpdateRequest updateRequest = new UpdateRequest(index, type, id).routing(routing).parent(parent).retryOnConflict(retryOnConflict)
-                                .version(version).versionType(versionType)
-                                .routing(routing)
-                                .parent(parent);
-                        // EMPTY is safe here because we never call namedObject
-                        try (XContentParser sliceParser = xContent.createParser(NamedXContentRegistry.EMPTY,
-                                                        sliceTrimmingCarriageReturn(data, from, nextMarker, xContentType))) {
-                            updateRequest.fromXContent(sliceParser);
-                        }
-                        if (fetchSourceContext != null) {
-                            updateRequest.fetchSource(fetchSourceContext);
-                        }
-                        if (fields != null) {
-                            updateRequest.fields(fields);
-                        }
+        /**
+         * Sets a simple valued parameter other than version, retry_on_conflict and _source.
+         */
+        private void setValue(String currentFieldName, String text, int line, boolean allowExplicitIndex) {
+            if (INDEX.match(currentFieldName)){
+                if (!allowExplicitIndex) {
+                    throw new IllegalArgumentException("explicit index in bulk is not allowed");
+                }
+                index = text;
+            } else if (TYPE.match(currentFieldName)) {
+                type = text;
+            } else if (ID.match(currentFieldName)) {
+                id = text;
+            } else if (ROUTING.match(currentFieldName)) {
+                routing = text;
+            } else if (PARENT.match(currentFieldName)) {
+                parent = text;
+            } else if (OP_TYPE.match(currentFieldName)) {
+                opType = text;
+            } else if (VERSION_TYPE.match(currentFieldName)) {
+                versionType = VersionType.fromString(text);
+            } else if (PIPELINE.match(currentFieldName)) {
+                pipeline = text;
+            } else if (FIELDS.match(currentFieldName)) {
+                throw new IllegalArgumentException("Action/metadata line [" + line + "] contains a simple value for parameter [fields] while a list is expected");
+            } else {
+                throw new IllegalArgumentException("Action/metadata line [" + line + "] contains an unknown parameter [" + currentFieldName + "]");
+            }
+        }
+    }
 
-                        IndexRequest upsertRequest = updateRequest.upsertRequest();
-                        if (upsertRequest != null) {
-                            upsertRequest.version(version);
-                            upsertRequest.versionType(versionType);
-                            upsertRequest.setPipeline(defaultPipeline);
-                        }
-                        IndexRequest doc = updateRequest.doc();
-                        if (doc != null) {
-                            doc.version(version);
-                            doc.versionType(versionType);
-                        }
+    /**
+     * Finds the separators of a bulk body in a single forward pass, reading the backing pages directly instead of going through
+     * {@link BytesReference#get(int)} for every byte.
+     */
+    private static final class MarkerScanner {
+        private final BytesRefIterator pages;
+        private final byte marker;
+        private final int length;
+        private BytesRef page;
+        private int pageStart = 0;      // position in the body of the first byte of the current page
+        private int pos = 0;            // position in the body of the next byte to scan
+
+        MarkerScanner(BytesReference data, byte marker) {
+            this.pages = data.iterator();
+            this.marker = marker;
+            this.length = data.length();
+        }
 
-                        internalAdd(updateRequest, payload);
+        /**
+         * The position of the next separator at or after {@code from}, or -1 if the body has been fully consumed.
+         */
+        int next(int from) throws IOException {
+            pos = Math.max(pos, from);
+            while (advanceToPos()) {
+                byte[] bytes = page.bytes;
+                int pageEnd = page.offset + page.length;
+                for (int i = page.offset + (pos - pageStart); i < pageEnd; i++) {
+                    if (bytes[i] == marker) {
+                        int found = pageStart + (i - page.offset);
+                        pos = found + 1;
+                        return found;
                     }
-                    // move pointers
-                    from = nextMarker + 1;
                 }
+                pos = pageStart + page.length;
             }
+            if (from != length) {
+                throw new IllegalArgumentException("The bulk request must be terminated by a newline [\n]");
+            }
+            return -1;
+        }
+
+        private boolean advanceToPos() throws IOException {
+            while (page == null || pos >= pageStart + page.length) {
+                if (page != null) {
+                    pageStart += page.length;
+                }
+                page = pages.next();
+                if (page == null) {
+                    return false;
+                }
+            }
+            return true;
         }
-        return this;
     }
 
     /**
@@ -527,18 +878,6 @@ public class BulkRequest extends ActionRequest implements CompositeIndicesReques
         return timeout;
     }
 
-    private int findNextMarker(byte marker, int from, BytesReference data, int length) {
-        for (int i = from; i < length; i++) {
-            if (data.get(i) == marker) {
-                return i;
-            }
-        }
-        if (from != length) {
-            throw new IllegalArgumentException("The bulk request must be terminated by a newline [\n]");
-        }
-        return -1;
-    }
-
     /**
      * @return Whether this bulk request contains index request with an ingest pipeline enabled.
      */
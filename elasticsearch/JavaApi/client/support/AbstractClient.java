@@ -25,6 +25,7 @@ import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestBuilder;
 import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.admin.cluster.allocation.ClusterAllocationExplainAction;
 import org.elasticsearch.action.admin.cluster.allocation.ClusterAllocationExplainRequest;
 import org.elasticsearch.action.admin.cluster.allocation.ClusterAllocationExplainRequestBuilder;
@@ -342,22 +343,28 @@ import org.elasticsearch.client.ClusterAdminClient;
 import org.elasticsearch.client.ElasticsearchClient;
 import org.elasticsearch.client.FilterClient;
 import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
 import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.tasks.TaskId;
 import org.elasticsearch.threadpool.ThreadPool;
 
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 public abstract class AbstractClient extends AbstractComponent implements Client {
 
     private final ThreadPool threadPool;
     private final Admin admin;
     private final ThreadedActionListener.Wrapper threadedWrapper;
+    private volatile RequestHedger requestHedger;
+    private volatile ResponseCache responseCache;
 
     public AbstractClient(Settings settings, ThreadPool threadPool) {
         super(settings);
@@ -402,11 +409,102 @@ public abstract class AbstractClient extends AbstractComponent implements Client
     public final <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void execute(
             Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
         listener = threadedWrapper.wrap(listener);
-        doExecute(action, request, listener);
+        ResponseCache cache = responseCache;
+        if (cache != null) {
+            if (action == SearchAction.INSTANCE && ((SearchRequest) request).scroll() == null) {
+                cache.execute(action.name(), request, ((SearchRequest) request).indices(), l -> doExecuteHedged(action, request, l),
+                    listener);
+                return;
+            } else if (action == GetAction.INSTANCE) {
+                cache.execute(action.name(), request, new String[] { ((GetRequest) request).index() },
+                    l -> doExecuteHedged(action, request, l), listener);
+                return;
+            } else if (action == IndexAction.INSTANCE || action == DeleteAction.INSTANCE || action == UpdateAction.INSTANCE) {
+                listener = cache.onWrite(((DocWriteRequest<?>) request).indices(), listener);
+            } else if (action == BulkAction.INSTANCE) {
+                listener = cache.onWrite(bulkIndices((BulkRequest) request), listener);
+            }
+        }
+        doExecuteHedged(action, request, listener);
+    }
+
+    private <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecuteHedged(
+            Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+        RequestHedger hedger = requestHedger;
+        if (hedger != null && isHedgeable(action, request)) {
+            // shared by all copies, so that the hedge avoids the node the first copy went to where the client chooses the node
+            Set<DiscoveryNode> usedNodes = ConcurrentCollections.newConcurrentSet();
+            hedger.execute(action.name(), l -> doExecute(action, request, l, usedNodes), listener);
+        } else {
+            doExecute(action, request, listener);
+        }
+    }
+
+    /**
+     * The indices written by the bulk request, {@code null} if one of them is not known.
+     */
+    private static String[] bulkIndices(BulkRequest request) {
+        Set<String> indices = new HashSet<>();
+        for (DocWriteRequest<?> item : request.requests()) {
+            if (item.index() == null) {
+                return null;
+            }
+            indices.add(item.index());
+        }
+        return indices.toArray(new String[indices.size()]);
+    }
+
+    /**
+     * Get, multi get and search requests other than scroll searches are idempotent reads that can safely be sent twice.
+     */
+    private static boolean isHedgeable(Action<?, ?, ?> action, ActionRequest request) {
+        if (action == GetAction.INSTANCE || action == MultiGetAction.INSTANCE) {
+            return true;
+        }
+        return action == SearchAction.INSTANCE && ((SearchRequest) request).scroll() == null;
+    }
+
+    /**
+     * Enables hedging of get, multi get and search requests with the given hedger, or disables it if {@code null}.
+     */
+    public final void setRequestHedger(@Nullable RequestHedger requestHedger) {
+        this.requestHedger = requestHedger;
+    }
+
+    /**
+     * The hedger of get, multi get and search requests, {@code null} if hedging is disabled.
+     */
+    @Nullable
+    public final RequestHedger getRequestHedger() {
+        return requestHedger;
+    }
+
+    /**
+     * Enables caching of get and search responses with the given cache, or disables it if {@code null}.
+     */
+    public final void setResponseCache(@Nullable ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * The cache of get and search responses, {@code null} if caching is disabled.
+     */
+    @Nullable
+    public final ResponseCache getResponseCache() {
+        return responseCache;
     }
 
     protected abstract <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener);
 
+    /**
+     * Executes one of several copies of a hedged request. Clients that choose the node a request is sent to add it to
+     * {@code usedNodes} and prefer nodes that are not in it yet, so that copies go to different nodes. By default the copy is executed
+     * like any other request.
+     */
+    protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener, Set<DiscoveryNode> usedNodes) {
+        doExecute(action, request, listener);
+    }
+
     @Override
     public ActionFuture<IndexResponse> index(final IndexRequest request) {
         return execute(IndexAction.INSTANCE, request);
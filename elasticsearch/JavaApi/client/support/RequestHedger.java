@@ -0,0 +1,279 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.client.support;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.FutureUtils;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Sends a second copy of an idempotent read request when the first one has not answered within a percentile of the recently
+ * observed latency of its action, and completes with whichever copy answers first. The response of the other copy is discarded.
+ * <p>
+ * The second copy goes to another node where the client chooses the node itself: a transport client with adaptive node selection
+ * avoids the node the first copy was sent to unless no other node is connected. A transport client without adaptive node selection
+ * sends it to the next node of its round robin, which may be the same one, and a node client executes both copies on the local node.
+ * <p>
+ * The extra load is capped by a budget: every request earns {@code maxHedgeRatio} of a hedge, up to a small burst, and every hedge
+ * spends a whole one, so at most about {@code maxHedgeRatio} of the requests are hedged even when a whole node is slow. No request is
+ * hedged before {@link #MIN_SAMPLES} latencies of its action have been observed.
+ * <p>
+ * Enable it with {@link AbstractClient#setRequestHedger(RequestHedger)}.
+ */
+public final class RequestHedger {
+
+    /**
+     * The number of latencies of an action that must be observed before its requests are hedged.
+     */
+    public static final int MIN_SAMPLES = 100;
+
+    private static final int WINDOW_SIZE = 1024;
+    private static final int RECOMPUTE_EVERY = 64;
+    private static final long BUDGET_UNIT = 1_000_000L;
+    private static final long MAX_BUDGET = 10 * BUDGET_UNIT;
+
+    private final ThreadPool threadPool;
+    private final double percentile;
+    private final long budgetPerRequest;
+    private final long minDelayNanos;
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private final AtomicLong budget = new AtomicLong();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+
+    /**
+     * @param threadPool    the thread pool used to schedule the hedges
+     * @param percentile    the percentile of the recent latencies after which a request is hedged, e.g. {@code 95}
+     * @param maxHedgeRatio the maximum fraction of the requests that may be hedged, e.g. {@code 0.05}
+     * @param minDelay      the minimum time to wait before hedging a request
+     */
+    public RequestHedger(ThreadPool threadPool, double percentile, double maxHedgeRatio, TimeValue minDelay) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100 (exclusive) but was [" + percentile + "]");
+        }
+        if (maxHedgeRatio <= 0 || maxHedgeRatio > 1) {
+            throw new IllegalArgumentException("maxHedgeRatio must be in (0, 1] but was [" + maxHedgeRatio + "]");
+        }
+        this.threadPool = threadPool;
+        this.percentile = percentile;
+        this.budgetPerRequest = (long) (maxHedgeRatio * BUDGET_UNIT);
+        this.minDelayNanos = minDelay.nanos();
+    }
+
+    /**
+     * Executes the request with the given attempt, which is called a second time with another listener if the request is hedged.
+     * Exceptions thrown by the first call are propagated to the caller.
+     */
+    <Response> void execute(String action, Consumer<ActionListener<Response>> attempt, ActionListener<Response> listener) {
+        requests.increment();
+        earnBudget();
+        LatencyWindow window = latencies.computeIfAbsent(action, a -> new LatencyWindow());
+        HedgedRequest<Response> request = new HedgedRequest<>(window, attempt, listener);
+        request.send(false);
+        long delayNanos = window.hedgeDelayNanos();
+        if (delayNanos >= 0) {
+            request.schedule(Math.max(delayNanos, minDelayNanos));
+        }
+    }
+
+    private void earnBudget() {
+        long current;
+        do {
+            current = budget.get();
+            if (current >= MAX_BUDGET) {
+                return;
+            }
+        } while (budget.compareAndSet(current, Math.min(MAX_BUDGET, current + budgetPerRequest)) == false);
+    }
+
+    private boolean spendBudget() {
+        long current;
+        do {
+            current = budget.get();
+            if (current < BUDGET_UNIT) {
+                return false;
+            }
+        } while (budget.compareAndSet(current, current - BUDGET_UNIT) == false);
+        return true;
+    }
+
+    /**
+     * The number of requests executed through this hedger.
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * The number of hedges sent.
+     */
+    public long getHedgeCount() {
+        return hedges.sum();
+    }
+
+    /**
+     * The number of requests that were answered by their hedge.
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * The fraction of the requests that were hedged.
+     */
+    public double getHedgeRate() {
+        long requestCount = requests.sum();
+        return requestCount == 0 ? 0d : (double) hedges.sum() / requestCount;
+    }
+
+    /**
+     * The time after which requests of the given action are currently hedged, or {@code null} if they are not hedged yet.
+     */
+    @Nullable
+    public TimeValue getHedgeDelay(String action) {
+        LatencyWindow window = latencies.get(action);
+        long delayNanos = window == null ? -1 : window.hedgeDelayNanos();
+        return delayNanos < 0 ? null : TimeValue.timeValueNanos(Math.max(delayNanos, minDelayNanos));
+    }
+
+    private final class HedgedRequest<Response> {
+        private final LatencyWindow window;
+        private final Consumer<ActionListener<Response>> attempt;
+        private final ActionListener<Response> listener;
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile ScheduledFuture<?> scheduledHedge;
+
+        HedgedRequest(LatencyWindow window, Consumer<ActionListener<Response>> attempt, ActionListener<Response> listener) {
+            this.window = window;
+            this.attempt = attempt;
+            this.listener = listener;
+        }
+
+        void schedule(long delayNanos) {
+            if (completed.get()) {
+                return;
+            }
+            scheduledHedge = threadPool.schedule(TimeValue.timeValueNanos(delayNanos), ThreadPool.Names.GENERIC,
+                threadPool.getThreadContext().preserveContext(() -> {
+                    if (completed.get() == false && spendBudget()) {
+                        hedges.increment();
+                        try {
+                            send(true);
+                        } catch (Exception e) {
+                            // either the failure completed the listener or the first copy is still running and decides the outcome
+                        }
+                    }
+                }));
+            if (completed.get()) {
+                FutureUtils.cancel(scheduledHedge);
+            }
+        }
+
+        void send(boolean hedge) {
+            long startNanos = System.nanoTime();
+            pending.incrementAndGet();
+            ActionListener<Response> attemptListener = new ActionListener<Response>() {
+                @Override
+                public void onResponse(Response response) {
+                    window.record(System.nanoTime() - startNanos);
+                    pending.decrementAndGet();
+                    if (completed.compareAndSet(false, true)) {
+                        cancelScheduledHedge();
+                        if (hedge) {
+                            hedgeWins.increment();
+                        }
+                        listener.onResponse(response);
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    // wait for the other copy if there is one
+                    if (pending.decrementAndGet() == 0 && completed.compareAndSet(false, true)) {
+                        cancelScheduledHedge();
+                        listener.onFailure(e);
+                    }
+                }
+            };
+            try {
+                attempt.accept(attemptListener);
+            } catch (Exception e) {
+                if (pending.decrementAndGet() == 0 && completed.compareAndSet(false, true)) {
+                    cancelScheduledHedge();
+                    if (hedge) {
+                        // the first copy failed already and left the outcome to this one
+                        listener.onFailure(e);
+                        return;
+                    }
+                }
+                throw e;
+            }
+        }
+
+        private void cancelScheduledHedge() {
+            ScheduledFuture<?> future = scheduledHedge;
+            if (future != null) {
+                FutureUtils.cancel(future);
+            }
+        }
+    }
+
+    /**
+     * The most recent latencies of one action, and the percentile of them that is used as hedge delay.
+     */
+    private final class LatencyWindow {
+        private final long[] samples = new long[WINDOW_SIZE];
+        private final AtomicLong count = new AtomicLong();
+        private volatile long hedgeDelayNanos = -1;
+
+        void record(long nanos) {
+            long n = count.getAndIncrement();
+            samples[(int) (n % WINDOW_SIZE)] = nanos;
+            if (n + 1 == MIN_SAMPLES || (n + 1 > MIN_SAMPLES && (n + 1) % RECOMPUTE_EVERY == 0)) {
+                recompute(Math.min(n + 1, WINDOW_SIZE));
+            }
+        }
+
+        private synchronized void recompute(long size) {
+            long[] sorted = Arrays.copyOf(samples, (int) size);
+            Arrays.sort(sorted);
+            int index = (int) Math.min(size - 1, Math.ceil(percentile / 100 * size) - 1);
+            hedgeDelayNanos = sorted[Math.max(0, index)];
+        }
+
+        long hedgeDelayNanos() {
+            return hedgeDelayNanos;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.client.support;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A client side cache of read responses, keyed on the action, the serialized request and the indices it targets.
+ * <p>
+ * Identical requests that are executed while one of them is in flight share its response instead of being sent again. Responses are
+ * kept for a limited time and up to a maximum number of entries, and are shared between all callers, who must not modify them.
+ * <p>
+ * Writes through the same client invalidate the responses of the indices they write to, both when the write is sent and when it
+ * completes, so that neither a response read before the write nor one read while it was in flight is served afterwards. Reads of
+ * wildcard expressions or of all indices are invalidated by any write. A request only shares the response of an identical request in
+ * flight if no write to its indices happened since that request was sent. Writes made through aliases, by other clients or by other
+ * processes are not noticed and are only picked up once the cached responses expire.
+ * <p>
+ * Versions are tracked for at most {@link #MAX_TRACKED_INDICES} indices written to. When more are written to, all of them are
+ * forgotten, which invalidates the responses of all concrete indices.
+ * <p>
+ * Enable it with {@link AbstractClient#setResponseCache(ResponseCache)}.
+ */
+public final class ResponseCache {
+
+    /**
+     * The number of indices written to whose versions are tracked before all of them are forgotten.
+     */
+    public static final int MAX_TRACKED_INDICES = 10_000;
+
+    private final Cache<Key, Entry> cache;
+    private final Map<Key, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> indexVersions = new ConcurrentHashMap<>();
+    private final AtomicLong globalVersion = new AtomicLong();
+    // incremented when the index versions are forgotten and on writes to unknown indices, so that no snapshot of concrete indices
+    // taken before is current anymore
+    private final AtomicLong indexVersionsEpoch = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    /**
+     * @param timeToLive the time a response is kept after it was received
+     * @param maxEntries the maximum number of responses kept
+     */
+    public ResponseCache(TimeValue timeToLive, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be greater than 0 but was [" + maxEntries + "]");
+        }
+        this.cache = CacheBuilder.<Key, Entry>builder()
+            .setExpireAfterWrite(timeToLive)
+            .setMaximumWeight(maxEntries)
+            .build();
+    }
+
+    /**
+     * Completes the listener with a cached response, with the response of an identical request in flight or with the response of
+     * the given loader. Exceptions thrown by the loader are propagated to the caller.
+     */
+    @SuppressWarnings("unchecked")
+    <Response extends ActionResponse> void execute(String action, ActionRequest request, String[] indices,
+                                                   Consumer<ActionListener<Response>> loader, ActionListener<Response> listener) {
+        Key key;
+        try {
+            key = new Key(action, request, indices);
+        } catch (IOException e) {
+            // not serializable on this side, never cached
+            loader.accept(listener);
+            return;
+        }
+        Entry entry = cache.get(key);
+        if (entry != null) {
+            if (entry.versions.isCurrent()) {
+                hits.increment();
+                listener.onResponse((Response) entry.response);
+                return;
+            }
+            cache.invalidate(key);
+        }
+        InFlight load = new InFlight(snapshot(indices), listener);
+        while (true) {
+            InFlight existing = inFlight.putIfAbsent(key, load);
+            if (existing == null) {
+                break;
+            }
+            if (existing.versions.isCurrent() == false) {
+                // sent before a write to its indices, its response must not be shared with this request
+                if (inFlight.replace(key, existing, load)) {
+                    break;
+                }
+                continue;
+            }
+            if (existing.addListener(listener)) {
+                shared.increment();
+                return;
+            }
+            // completed in the meantime
+            inFlight.remove(key, existing);
+        }
+        misses.increment();
+        try {
+            loader.accept(new ActionListener<Response>() {
+                @Override
+                public void onResponse(Response response) {
+                    inFlight.remove(key, load);
+                    if (load.versions.isCurrent()) {
+                        cache.put(key, new Entry(response, load.versions));
+                    }
+                    load.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    inFlight.remove(key, load);
+                    load.onFailure(e, false);
+                }
+            });
+        } catch (Exception e) {
+            inFlight.remove(key, load);
+            load.onFailure(e, true);
+            throw e;
+        }
+    }
+
+    /**
+     * Invalidates the responses of the given indices now and again when the write completes. {@code null} stands for a write to
+     * indices that are not known.
+     */
+    <Response> ActionListener<Response> onWrite(String[] indices, ActionListener<Response> listener) {
+        bumpVersions(indices);
+        return new ActionListener<Response>() {
+            @Override
+            public void onResponse(Response response) {
+                bumpVersions(indices);
+                listener.onResponse(response);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                bumpVersions(indices);
+                listener.onFailure(e);
+            }
+        };
+    }
+
+    private void bumpVersions(String[] indices) {
+        globalVersion.incrementAndGet();
+        if (indices == null) {
+            // the global version invalidates wildcard reads, the epoch those of concrete indices, including never written ones
+            indexVersionsEpoch.incrementAndGet();
+            return;
+        }
+        for (String index : indices) {
+            indexVersions.computeIfAbsent(index, i -> new AtomicLong()).incrementAndGet();
+        }
+        if (indexVersions.size() > MAX_TRACKED_INDICES) {
+            // cleared before the epoch moves on, so that a snapshot of the new epoch never sees versions of the old one
+            indexVersions.clear();
+            indexVersionsEpoch.incrementAndGet();
+        }
+    }
+
+    /**
+     * The version of an index, without tracking indices that are only read from.
+     */
+    private long version(String index) {
+        AtomicLong version = indexVersions.get(index);
+        return version == null ? 0 : version.get();
+    }
+
+    private Versions snapshot(String[] indices) {
+        if (isConcrete(indices) == false) {
+            return new Versions(null, null, globalVersion.get());
+        }
+        long epoch = indexVersionsEpoch.get();
+        long[] versions = new long[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            versions[i] = version(indices[i]);
+        }
+        return new Versions(indices, versions, epoch);
+    }
+
+    private static boolean isConcrete(String[] indices) {
+        if (indices == null || indices.length == 0) {
+            return false;
+        }
+        for (String index : indices) {
+            if (index == null || index.isEmpty() || "_all".equals(index) || index.indexOf('*') >= 0 || index.charAt(0) == '-'
+                || index.charAt(0) == '+') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops all cached responses.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * The number of cached responses.
+     */
+    public int count() {
+        return cache.count();
+    }
+
+    /**
+     * The number of requests answered from the cache.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * The number of requests that were sent.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * The number of requests that shared the response of an identical request in flight.
+     */
+    public long getSharedCount() {
+        return shared.sum();
+    }
+
+    /**
+     * The versions of the indices a response was read from, taken before the request was sent.
+     */
+    private final class Versions {
+        private final String[] indices;
+        private final long[] versions;
+        // the global version for wildcard expressions and all indices, the epoch of the index versions for concrete indices
+        private final long version;
+
+        Versions(String[] indices, long[] versions, long version) {
+            this.indices = indices;
+            this.versions = versions;
+            this.version = version;
+        }
+
+        boolean isCurrent() {
+            if (indices == null) {
+                return version == globalVersion.get();
+            }
+            if (version != indexVersionsEpoch.get()) {
+                return false;
+            }
+            for (int i = 0; i < indices.length; i++) {
+                if (version(indices[i]) != versions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Entry {
+        private final Object response;
+        private final Versions versions;
+
+        Entry(Object response, Versions versions) {
+            this.response = response;
+            this.versions = versions;
+        }
+    }
+
+    /**
+     * A request in flight and the listeners waiting for its response.
+     */
+    private static final class InFlight {
+        private final Versions versions;
+        private final List<ActionListener<?>> listeners = new ArrayList<>();
+        private boolean completed = false;
+
+        InFlight(Versions versions, ActionListener<?> listener) {
+            this.versions = versions;
+            this.listeners.add(listener);
+        }
+
+        synchronized boolean addListener(ActionListener<?> listener) {
+            if (completed) {
+                return false;
+            }
+            listeners.add(listener);
+            return true;
+        }
+
+        private synchronized List<ActionListener<?>> complete() {
+            completed = true;
+            return listeners;
+        }
+
+        @SuppressWarnings("unchecked")
+        void onResponse(Object response) {
+            for (ActionListener<?> listener : complete()) {
+                ((ActionListener<Object>) listener).onResponse(response);
+            }
+        }
+
+        /**
+         * @param skipFirst whether the listener of the request that was sent is left out, because the failure is thrown to it
+         */
+        void onFailure(Exception e, boolean skipFirst) {
+            List<ActionListener<?>> listeners = complete();
+            for (int i = skipFirst ? 1 : 0; i < listeners.size(); i++) {
+                listeners.get(i).onFailure(e);
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String action;
+        private final BytesReference request;
+        private final String[] indices;
+        private final int hashCode;
+
+        Key(String action, ActionRequest request, String[] indices) throws IOException {
+            this.action = action;
+            try (BytesStreamOutput out = new BytesStreamOutput()) {
+                request.writeTo(out);
+                // exact size copy, the stream's page would otherwise be kept for as long as the key
+                this.request = new BytesArray(BytesReference.toBytes(out.bytes()));
+            }
+            this.indices = indices;
+            this.hashCode = Objects.hash(action, this.request, Arrays.hashCode(indices));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hashCode == key.hashCode
+                && action.equals(key.action)
+                && Arrays.equals(indices, key.indices)
+                && request.equals(key.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
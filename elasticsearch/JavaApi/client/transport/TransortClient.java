@@ -11,14 +11,22 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.Action;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionModule;
@@ -26,6 +34,7 @@ import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestBuilder;
 import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.action.GenericAction;
+import org.elasticsearch.action.TransportActionNodeProxy;
 import org.elasticsearch.client.node.NodeClient;
 import org.elasticsearch.client.support.AbstractClient;
 import org.elasticsearch.cluster.ClusterModule;
@@ -64,6 +73,7 @@ import org.elasticsearch.plugins.ActionPlugin.ActionHandler;
 import org.elasticsearch.search.SearchModule;
 import org.elasticsearch.threadpool.ExecutorBuilder;
 import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.ConnectTransportException;
 import org.elasticsearch.transport.TcpTransport;
 import org.elasticsearch.transport.Transport;
 import org.elasticsearch.transport.TransportService;
@@ -74,12 +84,16 @@ public abstract class TransportClient extends AbstractClient {
     public static final Setting<TimeValue> CLIENT_TRANSPORT_PING_TIMEOUT;
     public static final Setting<Boolean> CLIENT_TRANSPORT_IGNORE_CLUSTER_NAME;
     public static final Setting<Boolean> CLIENT_TRANSPORT_SNIFF;
+    public static final Setting<Boolean> CLIENT_TRANSPORT_ADAPTIVE_NODE_SELECTION;
     public static final String CLIENT_TYPE = "transport";
     final Injector injector;
     protected final NamedWriteableRegistry namedWriteableRegistry;
     private final List<LifecycleComponent> pluginLifecycleComponents;
     private final TransportClientNodesService nodesService;
     private final TransportProxyClient proxy;
+    private final TransportClient.AdaptiveNodeSelector nodeSelector;
+    private final Map<GenericAction, TransportActionNodeProxy> nodeProxies;
+    private final TransportClient.HostFailureListener hostFailureListener;
 
     private static PluginsService newPluginService(Settings settings, Collection<Class<? extends Plugin>> plugins) {
         Builder settingsBuilder = Settings.builder().put(TcpTransport.PING_SCHEDULE.getKey(), "5s").put(InternalSettingsPreparer.prepareSettings(settings)).put(NetworkService.NETWORK_SERVER.getKey(), false).put(CLIENT_TYPE_SETTING_S.getKey(), "transport");
@@ -130,6 +144,8 @@ public abstract class TransportClient extends AbstractClient {
                 additionalSettings.addAll(builder.getRegisteredSettings());
             }
 
+            additionalSettings.add(CLIENT_TRANSPORT_ADAPTIVE_NODE_SELECTION);
+
             SettingsModule settingsModule = new SettingsModule(settings, additionalSettings, additionalSettingsFilter);
             SearchModule searchModule = new SearchModule(settings, true, pluginsService.filterPlugins(SearchPlugin.class));
             List<Entry> entries = new ArrayList();
@@ -177,8 +193,9 @@ public abstract class TransportClient extends AbstractClient {
                 b.bind(NetworkService.class).toInstance(networkService);
             }});
             Injector injector = modules.createInjector();
-            TransportClientNodesService nodesService = new TransportClientNodesService(settings, transportService, threadPool, failureListner == null?(t, e) -> {
-            }:failureListner);
+            TransportClient.HostFailureListener hostFailureListener = failureListner == null?(t, e) -> {
+            }:failureListner;
+            TransportClientNodesService nodesService = new TransportClientNodesService(settings, transportService, threadPool, hostFailureListener);
             List<ActionPlugin> actionPlugins = pluginsService.filterPlugins(ActionPlugin.class);
             List<GenericAction> clientActions = (List)actionPlugins.stream().flatMap((p) -> {
                 return p.getClientActions().stream();
@@ -186,13 +203,21 @@ public abstract class TransportClient extends AbstractClient {
             List<? extends GenericAction<?, ?>> baseActions = (List)actionModule.getActions().values().stream().map(ActionHandler::getAction).collect(Collectors.toList());
             clientActions.addAll(baseActions);
             TransportProxyClient proxy = new TransportProxyClient(settings, transportService, nodesService, clientActions);
+            Map<GenericAction, TransportActionNodeProxy> nodeProxies = new HashMap();
+            Iterator var31 = clientActions.iterator();
+
+            while(var31.hasNext()) {
+                GenericAction action = (GenericAction)var31.next();
+                nodeProxies.put(action, new TransportActionNodeProxy(settings, action, transportService));
+            }
+
             Stream var10002 = pluginsService.getGuiceServiceClasses().stream();
             Objects.requireNonNull(injector);
             List<LifecycleComponent> pluginLifecycleComponents = new ArrayList((Collection)var10002.map(injector::getInstance).collect(Collectors.toList()));
             resourcesToClose.addAll(pluginLifecycleComponents);
             transportService.start();
             transportService.acceptIncomingRequests();
-            TransportClient.ClientTemplate transportClient = new TransportClient.ClientTemplate(injector, pluginLifecycleComponents, nodesService, proxy, namedWriteableRegistry);
+            TransportClient.ClientTemplate transportClient = new TransportClient.ClientTemplate(injector, pluginLifecycleComponents, nodesService, proxy, namedWriteableRegistry, nodeProxies, hostFailureListener);
             resourcesToClose.clear();
             TransportClient.ClientTemplate var32 = transportClient;
             return var32;
@@ -216,6 +241,9 @@ public abstract class TransportClient extends AbstractClient {
         this.nodesService = template.nodesService;
         this.proxy = template.proxy;
         this.namedWriteableRegistry = template.namedWriteableRegistry;
+        this.nodeSelector = ((Boolean)CLIENT_TRANSPORT_ADAPTIVE_NODE_SELECTION.get(template.getSettings())).booleanValue()?new TransportClient.AdaptiveNodeSelector():null;
+        this.nodeProxies = template.nodeProxies;
+        this.hostFailureListener = template.hostFailureListener;
     }
 
     public List<TransportAddress> transportAddresses() {
@@ -234,6 +262,10 @@ public abstract class TransportClient extends AbstractClient {
         return this.nodesService.listedNodes();
     }
 
+    public List<TransportClient.NodeStatistics> nodeRanking() {
+        return this.nodeSelector == null?Collections.emptyList():this.nodeSelector.ranking(this.nodesService.connectedNodes());
+    }
+
     public TransportClient addTransportAddress(TransportAddress transportAddress) {
         this.nodesService.addTransportAddresses(new TransportAddress[]{transportAddress});
         return this;
@@ -268,7 +300,26 @@ public abstract class TransportClient extends AbstractClient {
     }
 
     protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
-        this.proxy.execute(action, request, listener);
+        this.doExecute(action, request, listener, (Set)null);
+    }
+
+    protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener, Set<DiscoveryNode> usedNodes) {
+        if(this.nodeSelector == null) {
+            this.proxy.execute(action, request, listener);
+        } else {
+            List<DiscoveryNode> nodes = this.nodesService.connectedNodes();
+            if(nodes.isEmpty()) {
+                throw new NoNodeAvailableException("None of the configured nodes are available: " + this.nodesService.transportAddresses());
+            }
+
+            TransportActionNodeProxy<Request, Response> nodeProxy = (TransportActionNodeProxy)this.nodeProxies.get(action);
+            if(nodeProxy == null) {
+                throw new IllegalStateException("no proxy found for action: " + action);
+            }
+
+            this.nodeSelector.retainNodes(nodes);
+            (new TransportClient.AdaptiveRequest(nodeProxy, request, listener, nodes, usedNodes)).run();
+        }
     }
 
     TransportClientNodesService getNodesService() {
@@ -280,6 +331,7 @@ public abstract class TransportClient extends AbstractClient {
         CLIENT_TRANSPORT_PING_TIMEOUT = Setting.positiveTimeSetting("client.transport.ping_timeout", TimeValue.timeValueSeconds(5L), new Property[]{Property.NodeScope});
         CLIENT_TRANSPORT_IGNORE_CLUSTER_NAME = Setting.boolSetting("client.transport.ignore_cluster_name", false, new Property[]{Property.NodeScope});
         CLIENT_TRANSPORT_SNIFF = Setting.boolSetting("client.transport.sniff", false, new Property[]{Property.NodeScope});
+        CLIENT_TRANSPORT_ADAPTIVE_NODE_SELECTION = Setting.boolSetting("client.transport.adaptive_node_selection", false, new Property[]{Property.NodeScope});
     }
 
     @FunctionalInterface
@@ -293,13 +345,17 @@ public abstract class TransportClient extends AbstractClient {
         private final TransportClientNodesService nodesService;
         private final TransportProxyClient proxy;
         private final NamedWriteableRegistry namedWriteableRegistry;
+        private final Map<GenericAction, TransportActionNodeProxy> nodeProxies;
+        private final TransportClient.HostFailureListener hostFailureListener;
 
-        private ClientTemplate(Injector injector, List<LifecycleComponent> pluginLifecycleComponents, TransportClientNodesService nodesService, TransportProxyClient proxy, NamedWriteableRegistry namedWriteableRegistry) {
+        private ClientTemplate(Injector injector, List<LifecycleComponent> pluginLifecycleComponents, TransportClientNodesService nodesService, TransportProxyClient proxy, NamedWriteableRegistry namedWriteableRegistry, Map<GenericAction, TransportActionNodeProxy> nodeProxies, TransportClient.HostFailureListener hostFailureListener) {
             this.injector = injector;
             this.pluginLifecycleComponents = pluginLifecycleComponents;
             this.nodesService = nodesService;
             this.proxy = proxy;
             this.namedWriteableRegistry = namedWriteableRegistry;
+            this.nodeProxies = nodeProxies;
+            this.hostFailureListener = hostFailureListener;
         }
 
         Settings getSettings() {
@@ -310,4 +366,244 @@ public abstract class TransportClient extends AbstractClient {
             return (ThreadPool)this.injector.getInstance(ThreadPool.class);
         }
     }
+
+    private class AdaptiveRequest<Request extends ActionRequest, Response extends ActionResponse> implements ActionListener<Response> {
+        private final TransportActionNodeProxy<Request, Response> nodeProxy;
+        private final Request request;
+        private final ActionListener<Response> listener;
+        private final List<DiscoveryNode> nodes;
+        private final Set<DiscoveryNode> tried = new HashSet();
+        private final Set<DiscoveryNode> usedNodes;
+        private volatile DiscoveryNode node;
+        private volatile long startNanos;
+
+        AdaptiveRequest(TransportActionNodeProxy<Request, Response> nodeProxy, Request request, ActionListener<Response> listener, List<DiscoveryNode> nodes, Set<DiscoveryNode> usedNodes) {
+            this.nodeProxy = nodeProxy;
+            this.request = request;
+            this.listener = listener;
+            this.nodes = nodes;
+            this.usedNodes = usedNodes;
+        }
+
+        void run() {
+            DiscoveryNode node = TransportClient.this.nodeSelector.select(this.nodes, this.tried, this.usedNodes);
+            this.tried.add(node);
+            if(this.usedNodes != null) {
+                this.usedNodes.add(node);
+            }
+
+            this.node = node;
+            this.startNanos = System.nanoTime();
+            TransportClient.this.nodeSelector.onRequestSent(node);
+
+            try {
+                this.nodeProxy.execute(node, this.request, this);
+            } catch (Exception var3) {
+                this.onFailure(var3);
+            }
+
+        }
+
+        public void onResponse(Response response) {
+            TransportClient.this.nodeSelector.onResponse(this.node, System.nanoTime() - this.startNanos);
+            this.listener.onResponse(response);
+        }
+
+        public void onFailure(Exception e) {
+            if(ExceptionsHelper.unwrapCause(e) instanceof ConnectTransportException) {
+                TransportClient.this.nodeSelector.onRequestFailure(this.node);
+                TransportClient.this.hostFailureListener.onNodeDisconnected(this.node, e);
+                if(this.tried.size() < this.nodes.size()) {
+                    this.run();
+                } else {
+                    this.listener.onFailure(new NoNodeAvailableException("None of the configured nodes were available: " + this.nodes, e));
+                }
+            } else {
+                TransportClient.this.nodeSelector.onRequestFailure(this.node);
+                this.listener.onFailure(e);
+            }
+
+        }
+    }
+
+    public static final class NodeStatistics {
+        private final DiscoveryNode node;
+        private final double responseTimeNanos;
+        private final int outstandingRequests;
+        private final double rank;
+
+        NodeStatistics(DiscoveryNode node, double responseTimeNanos, int outstandingRequests, double rank) {
+            this.node = node;
+            this.responseTimeNanos = responseTimeNanos;
+            this.outstandingRequests = outstandingRequests;
+            this.rank = rank;
+        }
+
+        public DiscoveryNode getNode() {
+            return this.node;
+        }
+
+        public double getResponseTimeNanos() {
+            return this.responseTimeNanos;
+        }
+
+        public int getOutstandingRequests() {
+            return this.outstandingRequests;
+        }
+
+        public double getRank() {
+            return this.rank;
+        }
+
+        public String toString() {
+            return "NodeStatistics{node=" + this.node + ", responseTime=" + TimeValue.timeValueNanos((long)this.responseTimeNanos) + ", outstandingRequests=" + this.outstandingRequests + ", rank=" + this.rank + '}';
+        }
+    }
+
+    static final class AdaptiveNodeSelector {
+        private static final double ALPHA = 0.3D;
+        private static final long HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(10L);
+        private final Map<String, TransportClient.AdaptiveNodeSelector.Stats> stats = new ConcurrentHashMap();
+        private volatile List<DiscoveryNode> lastNodes;
+
+        AdaptiveNodeSelector() {
+        }
+
+        DiscoveryNode select(List<DiscoveryNode> nodes, Set<DiscoveryNode> excluded, Set<DiscoveryNode> avoided) {
+            List<DiscoveryNode> candidates = candidates(nodes, excluded, avoided);
+            if(candidates.isEmpty()) {
+                candidates = candidates(nodes, excluded, (Set)null);
+            }
+
+            if(candidates.size() == 1) {
+                return (DiscoveryNode)candidates.get(0);
+            } else {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int first = random.nextInt(candidates.size());
+                int second = random.nextInt(candidates.size() - 1);
+                if(second >= first) {
+                    ++second;
+                }
+
+                DiscoveryNode a = (DiscoveryNode)candidates.get(first);
+                DiscoveryNode b = (DiscoveryNode)candidates.get(second);
+                long now = System.nanoTime();
+                TransportClient.AdaptiveNodeSelector.Stats statsA = this.stats(a);
+                TransportClient.AdaptiveNodeSelector.Stats statsB = this.stats(b);
+                return statsA.rank(this.responseTimeNanos(statsA, now)) <= statsB.rank(this.responseTimeNanos(statsB, now))?a:b;
+            }
+        }
+
+        private static List<DiscoveryNode> candidates(List<DiscoveryNode> nodes, Set<DiscoveryNode> excluded, Set<DiscoveryNode> avoided) {
+            if(excluded.isEmpty() && (avoided == null || avoided.isEmpty())) {
+                return nodes;
+            } else {
+                List<DiscoveryNode> candidates = new ArrayList(nodes.size());
+                Iterator var4 = nodes.iterator();
+
+                while(var4.hasNext()) {
+                    DiscoveryNode node = (DiscoveryNode)var4.next();
+                    if(!excluded.contains(node) && (avoided == null || !avoided.contains(node))) {
+                        candidates.add(node);
+                    }
+                }
+
+                return candidates;
+            }
+        }
+
+        void onRequestSent(DiscoveryNode node) {
+            this.stats(node).outstanding.incrementAndGet();
+        }
+
+        void onResponse(DiscoveryNode node, long tookNanos) {
+            TransportClient.AdaptiveNodeSelector.Stats stats = this.stats(node);
+            stats.outstanding.decrementAndGet();
+            stats.update((double)tookNanos, System.nanoTime());
+        }
+
+        void onRequestFailure(DiscoveryNode node) {
+            this.stats(node).outstanding.decrementAndGet();
+        }
+
+        void retainNodes(List<DiscoveryNode> nodes) {
+            if(this.lastNodes != nodes) {
+                this.lastNodes = nodes;
+                this.stats.keySet().retainAll((Collection)nodes.stream().map(DiscoveryNode::getId).collect(Collectors.toSet()));
+            }
+        }
+
+        List<TransportClient.NodeStatistics> ranking(List<DiscoveryNode> nodes) {
+            this.retainNodes(nodes);
+            long now = System.nanoTime();
+            List<TransportClient.NodeStatistics> ranking = new ArrayList(nodes.size());
+            Iterator var5 = nodes.iterator();
+
+            while(var5.hasNext()) {
+                DiscoveryNode node = (DiscoveryNode)var5.next();
+                TransportClient.AdaptiveNodeSelector.Stats stats = this.stats(node);
+                double responseTimeNanos = this.responseTimeNanos(stats, now);
+                ranking.add(new TransportClient.NodeStatistics(node, responseTimeNanos, stats.outstanding.get(), stats.rank(responseTimeNanos)));
+            }
+
+            ranking.sort((x, y) -> {
+                return Double.compare(x.getRank(), y.getRank());
+            });
+            return Collections.unmodifiableList(ranking);
+        }
+
+        private double responseTimeNanos(TransportClient.AdaptiveNodeSelector.Stats stats, long now) {
+            double responseTimeNanos = stats.responseTimeNanos(now);
+            if(responseTimeNanos > 0.0D) {
+                return responseTimeNanos;
+            } else {
+                double sum = 0.0D;
+                int count = 0;
+                Iterator var8 = this.stats.values().iterator();
+
+                while(var8.hasNext()) {
+                    TransportClient.AdaptiveNodeSelector.Stats other = (TransportClient.AdaptiveNodeSelector.Stats)var8.next();
+                    double otherNanos = other.responseTimeNanos(now);
+                    if(otherNanos > 0.0D) {
+                        sum += otherNanos;
+                        ++count;
+                    }
+                }
+
+                return count == 0?1.0D:sum / (double)count;
+            }
+        }
+
+        private TransportClient.AdaptiveNodeSelector.Stats stats(DiscoveryNode node) {
+            return (TransportClient.AdaptiveNodeSelector.Stats)this.stats.computeIfAbsent(node.getId(), (id) -> {
+                return new TransportClient.AdaptiveNodeSelector.Stats();
+            });
+        }
+
+        private static final class Stats {
+            private volatile double responseTimeNanos = 0.0D;
+            private volatile long updatedNanos;
+            private final AtomicInteger outstanding = new AtomicInteger();
+
+            private Stats() {
+            }
+
+            double responseTimeNanos(long now) {
+                double responseTimeNanos = this.responseTimeNanos;
+                long idleNanos = now - this.updatedNanos;
+                return responseTimeNanos == 0.0D || idleNanos <= 0L?responseTimeNanos:responseTimeNanos * Math.pow(0.5D, (double)idleNanos / (double)HALF_LIFE_NANOS);
+            }
+
+            double rank(double responseTimeNanos) {
+                double queue = (double)(1 + Math.max(0, this.outstanding.get()));
+                return responseTimeNanos * queue * queue * queue;
+            }
+
+            synchronized void update(double tookNanos, long now) {
+                double current = this.responseTimeNanos(now);
+                this.responseTimeNanos = current == 0.0D?tookNanos:ALPHA * tookNanos + (1.0D - ALPHA) * current;
+                this.updatedNanos = now;
+            }
+        }
+    }
 }
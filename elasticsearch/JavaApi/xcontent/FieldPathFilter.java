@@ -0,0 +1,323 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.common.xcontent;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.regex.Regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inclusive and exclusive field path filters, as accepted by {@link XContentBuilder#XContentBuilder(XContent, java.io.OutputStream, Set,
+ * Set)}, compiled into an automaton over the segments of field paths. Filtered builders write through a
+ * {@link FieldPathFilteringGenerator} that walks it.
+ * <p>
+ * Filtering walks the automaton along with the generated content: {@link #root()} is the state at the top level and
+ * {@link State#field(String)} the state of a field of the current object. Each step costs one lookup per segment of the field name
+ * (plus one simple match per wildcard segment that can follow), independently of the number of patterns, and the steps taken are
+ * remembered so that the same fields of later documents are single map lookups. A field whose state {@link State#isExcluded() is
+ * excluded} can be skipped together with everything below it, and everything below a field whose state
+ * {@link State#isIncluded() is included} can be written without any further matching.
+ * <p>
+ * As with the generators, exclusions are applied first and the remaining fields are then checked against the inclusions. Patterns
+ * are dot separated paths whose segments may contain {@code *} wildcards, a {@code **} segment matches any number of segments.
+ * <p>
+ * Compiled filters are immutable, thread safe and cached per pattern set, see {@link #compile(Set, Set)}.
+ */
+public final class FieldPathFilter {
+
+    /**
+     * The filter that includes every field.
+     */
+    public static final FieldPathFilter MATCH_ALL = new FieldPathFilter(Collections.emptySet(), Collections.emptySet());
+
+    // filters are kept for at most this many pattern sets, further sets are compiled on every call
+    private static final int MAX_CACHED_FILTERS = 256;
+
+    // transitions are remembered for at most this many distinct field names per state
+    private static final int MAX_CACHED_TRANSITIONS = 1024;
+
+    private static final Map<List<Set<String>>, FieldPathFilter> CACHE = new ConcurrentHashMap<>();
+
+    private final Set<String> includes;
+    private final Set<String> excludes;
+    private final State root;
+
+    private FieldPathFilter(Set<String> includes, Set<String> excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+        Node[] include = includes.isEmpty() ? null : closure(new Node[] { Node.compile(includes) });
+        Node[] exclude = excludes.isEmpty() ? null : closure(new Node[] { Node.compile(excludes) });
+        this.root = include == null && exclude == null ? State.INCLUDED : new State(include, exclude);
+    }
+
+    /**
+     * Returns the compiled filter for the given patterns. {@code null} or empty sets mean no filtering of that kind.
+     */
+    public static FieldPathFilter compile(Set<String> includes, Set<String> excludes) {
+        boolean noIncludes = includes == null || includes.isEmpty();
+        boolean noExcludes = excludes == null || excludes.isEmpty();
+        if (noIncludes && noExcludes) {
+            return MATCH_ALL;
+        }
+        // looked up with the given sets, which are only copied when the filter is compiled
+        FieldPathFilter filter = CACHE.get(Arrays.asList(noIncludes ? Collections.emptySet() : includes,
+            noExcludes ? Collections.emptySet() : excludes));
+        if (filter == null) {
+            Set<String> includesCopy = noIncludes ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(includes));
+            Set<String> excludesCopy = noExcludes ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(excludes));
+            List<Set<String>> key = Arrays.asList(includesCopy, excludesCopy);
+            filter = new FieldPathFilter(includesCopy, excludesCopy);
+            if (CACHE.size() < MAX_CACHED_FILTERS) {
+                FieldPathFilter existing = CACHE.putIfAbsent(key, filter);
+                if (existing != null) {
+                    filter = existing;
+                }
+            }
+        }
+        return filter;
+    }
+
+    public Set<String> includes() {
+        return includes;
+    }
+
+    public Set<String> excludes() {
+        return excludes;
+    }
+
+    /**
+     * Whether this filter lets every field through.
+     */
+    public boolean isMatchAll() {
+        return root.isIncluded();
+    }
+
+    /**
+     * The state for the fields of the top level object.
+     */
+    public State root() {
+        return root;
+    }
+
+    /**
+     * A state of the automaton, which stands for the position of the field it was reached with. The fields of the object of that
+     * field are matched with {@link #field(String)}.
+     */
+    public static final class State {
+
+        static final State INCLUDED = new State(null, null);
+        static final State EXCLUDED = new State(null, null);
+
+        // the include and exclude pattern nodes that the path can still complete, null when no inclusions resp. exclusions apply
+        private final Node[] include;
+        private final Node[] exclude;
+        private final Map<String, State> transitions = new ConcurrentHashMap<>();
+
+        private State(Node[] include, Node[] exclude) {
+            this.include = include;
+            this.exclude = exclude;
+        }
+
+        /**
+         * Whether the field and everything below it must be skipped.
+         */
+        public boolean isExcluded() {
+            return this == EXCLUDED;
+        }
+
+        /**
+         * Whether the field and everything below it must be written.
+         */
+        public boolean isIncluded() {
+            return this == INCLUDED;
+        }
+
+        /**
+         * Whether a value at this state is written itself, which is the case unless it is excluded or only some of its fields are
+         * included. The fields of an object or array that is written may still be filtered.
+         */
+        public boolean includesValue() {
+            return this == INCLUDED || (this != EXCLUDED && include == null);
+        }
+
+        /**
+         * The state of the given field of the current object. Names with dots are matched segment by segment.
+         */
+        public State field(String name) {
+            if (this == INCLUDED || this == EXCLUDED) {
+                return this;
+            }
+            State state = transitions.get(name);
+            if (state == null) {
+                state = step(name);
+                if (transitions.size() < MAX_CACHED_TRANSITIONS) {
+                    transitions.putIfAbsent(name, state);
+                }
+            }
+            return state;
+        }
+
+        private State step(String name) {
+            if (name.indexOf('.') >= 0) {
+                State state = this;
+                for (String segment : Strings.delimitedListToStringArray(name, ".")) {
+                    state = state.field(segment);
+                }
+                return state;
+            }
+            Node[] nextExclude = null;
+            if (exclude != null) {
+                nextExclude = next(exclude, name);
+                if (matches(nextExclude)) {
+                    return EXCLUDED;
+                }
+                if (nextExclude.length == 0) {
+                    nextExclude = null;
+                }
+            }
+            Node[] nextInclude = null;
+            if (include != null) {
+                nextInclude = next(include, name);
+                if (matches(nextInclude)) {
+                    nextInclude = null;
+                } else if (nextInclude.length == 0) {
+                    return EXCLUDED;
+                }
+            }
+            if (nextInclude == null && nextExclude == null) {
+                return INCLUDED;
+            }
+            return new State(nextInclude, nextExclude);
+        }
+    }
+
+    private static boolean matches(Node[] nodes) {
+        for (Node node : nodes) {
+            if (node.terminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Node[] next(Node[] nodes, String name) {
+        Set<Node> next = new LinkedHashSet<>();
+        for (Node node : nodes) {
+            if (node.anyDepth) {
+                next.add(node);
+            }
+            Node child = node.exact.get(name);
+            if (child != null) {
+                next.add(child);
+            }
+            for (int i = 0; i < node.wildcardPatterns.length; i++) {
+                if (Regex.simpleMatch(node.wildcardPatterns[i], name)) {
+                    next.add(node.wildcardNodes[i]);
+                }
+            }
+        }
+        return closure(next.toArray(new Node[next.size()]));
+    }
+
+    /**
+     * Adds the {@code **} nodes that can be entered without consuming a segment.
+     */
+    private static Node[] closure(Node[] nodes) {
+        Set<Node> closure = null;
+        for (Node node : nodes) {
+            if (node.anyDepthChild != null) {
+                if (closure == null) {
+                    closure = new LinkedHashSet<>(Arrays.asList(nodes));
+                }
+                Node child = node.anyDepthChild;
+                while (child != null && closure.add(child)) {
+                    child = child.anyDepthChild;
+                }
+            }
+        }
+        return closure == null ? nodes : closure.toArray(new Node[closure.size()]);
+    }
+
+    /**
+     * A node of the pattern trie, for the path segments matched so far.
+     */
+    private static final class Node {
+        boolean terminal;                       // a pattern ends here
+        boolean anyDepth;                       // this node stands for a ** segment and matches any further segment
+        Node anyDepthChild;                     // the child for a following ** segment
+        Map<String, Node> exact = Collections.emptyMap();
+        String[] wildcardPatterns = Strings.EMPTY_ARRAY;
+        Node[] wildcardNodes = new Node[0];
+
+        static Node compile(Set<String> patterns) {
+            Node root = new Node();
+            for (String pattern : patterns) {
+                if (Strings.hasText(pattern) == false) {
+                    continue;
+                }
+                Node node = root;
+                for (String segment : Strings.delimitedListToStringArray(pattern, ".")) {
+                    node = node.child(segment);
+                }
+                node.terminal = true;
+            }
+            return root;
+        }
+
+        private Node child(String segment) {
+            if ("**".equals(segment)) {
+                if (anyDepthChild == null) {
+                    anyDepthChild = new Node();
+                    anyDepthChild.anyDepth = true;
+                }
+                return anyDepthChild;
+            }
+            if (Regex.isSimpleMatchPattern(segment)) {
+                for (int i = 0; i < wildcardPatterns.length; i++) {
+                    if (wildcardPatterns[i].equals(segment)) {
+                        return wildcardNodes[i];
+                    }
+                }
+                Node child = new Node();
+                List<String> patterns = new ArrayList<>(Arrays.asList(wildcardPatterns));
+                patterns.add(segment);
+                List<Node> nodes = new ArrayList<>(Arrays.asList(wildcardNodes));
+                nodes.add(child);
+                wildcardPatterns = patterns.toArray(new String[patterns.size()]);
+                wildcardNodes = nodes.toArray(new Node[nodes.size()]);
+                return child;
+            }
+            if (exact.isEmpty()) {
+                exact = new HashMap<>();
+            }
+            return exact.computeIfAbsent(segment, s -> new Node());
+        }
+    }
+}
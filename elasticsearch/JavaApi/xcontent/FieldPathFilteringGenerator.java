@@ -0,0 +1,467 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.common.xcontent;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A generator that passes on to another generator only the fields a {@link FieldPathFilter} lets through, walking the
+ * {@link FieldPathFilter.State states} of the filter along with the generated content.
+ * <p>
+ * Objects and arrays whose fields still have to match an inclusion are started lazily, once something inside them is written, so
+ * that they are left out when nothing inside them matches. Everything below an excluded field is dropped and everything below an
+ * included one is passed on without any further matching. Raw content that is only partially included is parsed and filtered like
+ * generated content.
+ */
+final class FieldPathFilteringGenerator implements XContentGenerator {
+
+    private final XContentGenerator delegate;
+    private final FieldPathFilter filter;
+    // the innermost open object or array, null at the top level
+    private Frame frame;
+    // the field name of the next value of the current object, not passed on until the value is known to be written
+    private String pendingName;
+    private FieldPathFilter.State pendingState;
+
+    FieldPathFilteringGenerator(XContentGenerator delegate, FieldPathFilter filter) {
+        this.delegate = delegate;
+        this.filter = filter;
+    }
+
+    /**
+     * The state of the next value of the current object or array.
+     */
+    private FieldPathFilter.State valueState() {
+        if (frame.array || pendingState == null) {
+            return frame.state;
+        }
+        return pendingState;
+    }
+
+    private FieldPathFilter.State fieldState(String name) {
+        return frame == null ? FieldPathFilter.State.INCLUDED : frame.state.field(name);
+    }
+
+    private void clearPending() {
+        pendingName = null;
+        pendingState = null;
+    }
+
+    /**
+     * Decides whether the next value is written, and if so writes everything it is nested in and its field name.
+     */
+    private boolean writeValue() throws IOException {
+        if (frame == null) {
+            return true;
+        }
+        FieldPathFilter.State state = valueState();
+        String name = pendingName;
+        clearPending();
+        if (state.includesValue() == false) {
+            return false;
+        }
+        materialize(frame);
+        if (name != null) {
+            delegate.writeFieldName(name);
+        }
+        return true;
+    }
+
+    /**
+     * Decides whether a field written together with its value is written, and if so writes everything it is nested in.
+     */
+    private boolean writeField(String name) throws IOException {
+        clearPending();
+        if (fieldState(name).includesValue() == false) {
+            return false;
+        }
+        if (frame != null) {
+            materialize(frame);
+        }
+        return true;
+    }
+
+    private void materialize(Frame frame) throws IOException {
+        if (frame.written) {
+            return;
+        }
+        if (frame.parent != null) {
+            materialize(frame.parent);
+        }
+        if (frame.name != null) {
+            delegate.writeFieldName(frame.name);
+        }
+        if (frame.array) {
+            delegate.writeStartArray();
+        } else {
+            delegate.writeStartObject();
+        }
+        frame.written = true;
+    }
+
+    private void start(boolean array) throws IOException {
+        boolean topLevel = frame == null;
+        FieldPathFilter.State state = topLevel ? filter.root() : valueState();
+        frame = new Frame(frame, state, pendingName, array);
+        clearPending();
+        // the top level is always written, and so is everything that is included as a whole or only subject to exclusions
+        if (topLevel || state.includesValue()) {
+            materialize(frame);
+        }
+    }
+
+    private void end(boolean array) throws IOException {
+        Frame current = frame;
+        clearPending();
+        if (current == null) {
+            // not started, let the delegate fail
+            if (array) {
+                delegate.writeEndArray();
+            } else {
+                delegate.writeEndObject();
+            }
+            return;
+        }
+        frame = current.parent;
+        if (current.written) {
+            if (current.array) {
+                delegate.writeEndArray();
+            } else {
+                delegate.writeEndObject();
+            }
+        }
+    }
+
+    @Override
+    public XContentType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public void usePrettyPrint() {
+        delegate.usePrettyPrint();
+    }
+
+    @Override
+    public boolean isPrettyPrint() {
+        return delegate.isPrettyPrint();
+    }
+
+    @Override
+    public void usePrintLineFeedAtEnd() {
+        delegate.usePrintLineFeedAtEnd();
+    }
+
+    @Override
+    public void writeStartObject() throws IOException {
+        start(false);
+    }
+
+    @Override
+    public void writeEndObject() throws IOException {
+        end(false);
+    }
+
+    @Override
+    public void writeStartArray() throws IOException {
+        start(true);
+    }
+
+    @Override
+    public void writeEndArray() throws IOException {
+        end(true);
+    }
+
+    @Override
+    public void writeFieldName(String name) throws IOException {
+        if (frame == null) {
+            // not in an object, let the delegate fail
+            delegate.writeFieldName(name);
+            return;
+        }
+        pendingName = name;
+        pendingState = frame.state.field(name);
+    }
+
+    @Override
+    public void writeNull() throws IOException {
+        if (writeValue()) {
+            delegate.writeNull();
+        }
+    }
+
+    @Override
+    public void writeNullField(String name) throws IOException {
+        if (writeField(name)) {
+            delegate.writeNullField(name);
+        }
+    }
+
+    @Override
+    public void writeBooleanField(String name, boolean value) throws IOException {
+        if (writeField(name)) {
+            delegate.writeBooleanField(name, value);
+        }
+    }
+
+    @Override
+    public void writeBoolean(boolean value) throws IOException {
+        if (writeValue()) {
+            delegate.writeBoolean(value);
+        }
+    }
+
+    @Override
+    public void writeNumberField(String name, double value) throws IOException {
+        if (writeField(name)) {
+            delegate.writeNumberField(name, value);
+        }
+    }
+
+    @Override
+    public void writeNumberField(String name, float value) throws IOException {
+        if (writeField(name)) {
+            delegate.writeNumberField(name, value);
+        }
+    }
+
+    @Override
+    public void writeNumberField(String name, int value) throws IOException {
+        if (writeField(name)) {
+            delegate.writeNumberField(name, value);
+        }
+    }
+
+    @Override
+    public void writeNumberField(String name, long value) throws IOException {
+        if (writeField(name)) {
+            delegate.writeNumberField(name, value);
+        }
+    }
+
+    @Override
+    public void writeNumber(double value) throws IOException {
+        if (writeValue()) {
+            delegate.writeNumber(value);
+        }
+    }
+
+    @Override
+    public void writeNumber(float value) throws IOException {
+        if (writeValue()) {
+            delegate.writeNumber(value);
+        }
+    }
+
+    @Override
+    public void writeNumber(int value) throws IOException {
+        if (writeValue()) {
+            delegate.writeNumber(value);
+        }
+    }
+
+    @Override
+    public void writeNumber(long value) throws IOException {
+        if (writeValue()) {
+            delegate.writeNumber(value);
+        }
+    }
+
+    @Override
+    public void writeNumber(short value) throws IOException {
+        if (writeValue()) {
+            delegate.writeNumber(value);
+        }
+    }
+
+    @Override
+    public void writeStringField(String name, String value) throws IOException {
+        if (writeField(name)) {
+            delegate.writeStringField(name, value);
+        }
+    }
+
+    @Override
+    public void writeString(String value) throws IOException {
+        if (writeValue()) {
+            delegate.writeString(value);
+        }
+    }
+
+    @Override
+    public void writeString(char[] text, int offset, int len) throws IOException {
+        if (writeValue()) {
+            delegate.writeString(text, offset, len);
+        }
+    }
+
+    @Override
+    public void writeUTF8String(byte[] value, int offset, int length) throws IOException {
+        if (writeValue()) {
+            delegate.writeUTF8String(value, offset, length);
+        }
+    }
+
+    @Override
+    public void writeBinaryField(String name, byte[] value) throws IOException {
+        if (writeField(name)) {
+            delegate.writeBinaryField(name, value);
+        }
+    }
+
+    @Override
+    public void writeBinary(byte[] value) throws IOException {
+        if (writeValue()) {
+            delegate.writeBinary(value);
+        }
+    }
+
+    @Override
+    public void writeBinary(byte[] value, int offset, int length) throws IOException {
+        if (writeValue()) {
+            delegate.writeBinary(value, offset, length);
+        }
+    }
+
+    @Override
+    @Deprecated
+    public void writeRawField(String name, InputStream value) throws IOException {
+        if (value.markSupported() == false) {
+            value = new BufferedInputStream(value);
+        }
+        writeRawField(name, value, XContentFactory.xContentType(value));
+    }
+
+    @Override
+    public void writeRawField(String name, InputStream value, XContentType xContentType) throws IOException {
+        FieldPathFilter.State state = fieldState(name);
+        if (state.isIncluded()) {
+            writeField(name);
+            delegate.writeRawField(name, value, xContentType);
+        } else if (state.isExcluded() == false) {
+            writeFieldName(name);
+            copyRaw(xContentType.xContent().createParser(NamedXContentRegistry.EMPTY, value));
+        }
+    }
+
+    @Override
+    @Deprecated
+    public void writeRawField(String name, BytesReference value) throws IOException {
+        writeRawField(name, value, XContentFactory.xContentType(value));
+    }
+
+    @Override
+    public void writeRawField(String name, BytesReference value, XContentType xContentType) throws IOException {
+        FieldPathFilter.State state = fieldState(name);
+        if (state.isIncluded()) {
+            writeField(name);
+            delegate.writeRawField(name, value, xContentType);
+        } else if (state.isExcluded() == false) {
+            writeFieldName(name);
+            copyRaw(xContentType.xContent().createParser(NamedXContentRegistry.EMPTY, value));
+        }
+    }
+
+    @Override
+    @Deprecated
+    public void writeRawValue(BytesReference value) throws IOException {
+        writeRawValue(value, XContentFactory.xContentType(value));
+    }
+
+    @Override
+    public void writeRawValue(BytesReference value, XContentType xContentType) throws IOException {
+        // a raw value at the top level is filtered like any other top level content
+        FieldPathFilter.State state = frame == null ? filter.root() : valueState();
+        if (state.isIncluded()) {
+            writeValue();
+            delegate.writeRawValue(value, xContentType);
+        } else if (state.isExcluded()) {
+            clearPending();
+        } else {
+            copyRaw(xContentType.xContent().createParser(NamedXContentRegistry.EMPTY, value));
+        }
+    }
+
+    private void copyRaw(XContentParser parser) throws IOException {
+        try (XContentParser p = parser) {
+            if (p.nextToken() != null) {
+                XContentHelper.copyCurrentStructure(this, p);
+            }
+        }
+    }
+
+    @Override
+    public void copyCurrentStructure(XContentParser parser) throws IOException {
+        // field names and top level content go through this generator token by token
+        if (frame != null && parser.currentToken() != XContentParser.Token.FIELD_NAME) {
+            FieldPathFilter.State state = valueState();
+            if (state.isIncluded()) {
+                writeValue();
+                delegate.copyCurrentStructure(parser);
+                return;
+            }
+            if (state.isExcluded()) {
+                clearPending();
+                parser.skipChildren();
+                return;
+            }
+        }
+        XContentHelper.copyCurrentStructure(this, parser);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return delegate.isClosed();
+    }
+
+    /**
+     * An object or array that has been started, together with the state its content is matched from.
+     */
+    private static final class Frame {
+        private final Frame parent;
+        // for objects the state their fields are matched from, for arrays the state of their elements
+        private final FieldPathFilter.State state;
+        // the field name the object or array is the value of, null for array elements and the top level
+        private final String name;
+        private final boolean array;
+        private boolean written = false;
+
+        Frame(Frame parent, FieldPathFilter.State state, String name, boolean array) {
+            this.parent = parent;
+            this.state = state;
+            this.name = name;
+            this.array = array;
+        }
+    }
+}
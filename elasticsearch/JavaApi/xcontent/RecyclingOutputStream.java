@@ -0,0 +1,227 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.common.xcontent;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.bytes.CompositeBytesReference;
+
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An {@link OutputStream} that writes into fixed size pages borrowed from a shared, striped pool and gives them back when it is
+ * {@link #release() released}. This is the output of the builders returned by {@link XContentBuilder#pooledBuilder(XContent)}.
+ * <p>
+ * The {@link #bytes()} of this stream point to the pooled pages and are only valid until the stream is released, bytes that must
+ * outlive the stream are taken with {@link #copyBytes()}. Pages are given back to the stripe they were borrowed from.
+ * <p>
+ * When assertions are enabled, as they are in tests, every stream that is not released is tracked together with the stack trace of
+ * its creation, see {@link #ensureAllReleased()}, and the pages are zeroed when they are given back so that reading released bytes
+ * is noticed.
+ */
+public final class RecyclingOutputStream extends OutputStream {
+
+    /**
+     * The size of the pooled pages.
+     */
+    public static final int PAGE_SIZE = 1 << 14;
+
+    // at most this many pages are kept per stripe, 1MB
+    private static final int MAX_PAGES_PER_STRIPE = 64;
+
+    private static final Stripe[] STRIPES;
+    static {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        STRIPES = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            STRIPES[i] = new Stripe();
+        }
+    }
+
+    private static final boolean TRACK_LEAKS;
+    static {
+        boolean enabled = false;
+        assert enabled = true;
+        TRACK_LEAKS = enabled;
+    }
+
+    private static final Map<RecyclingOutputStream, Throwable> ACQUIRED = new ConcurrentHashMap<>();
+
+    private final Stripe stripe = stripe();
+    private final List<byte[]> pages = new ArrayList<>();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private byte[] page;
+    private int pageOffset = PAGE_SIZE;
+
+    public RecyclingOutputStream() {
+        if (TRACK_LEAKS) {
+            ACQUIRED.put(this, new Throwable("unreleased pooled output stream, allocated here"));
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity();
+        page[pageOffset++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            ensureCapacity();
+            int toCopy = Math.min(len, PAGE_SIZE - pageOffset);
+            System.arraycopy(b, off, page, pageOffset, toCopy);
+            pageOffset += toCopy;
+            off += toCopy;
+            len -= toCopy;
+        }
+    }
+
+    private void ensureCapacity() {
+        // a released stream has no current page, so writes after release always end up here
+        if (pageOffset == PAGE_SIZE) {
+            ensureNotReleased();
+            page = stripe.acquire();
+            pages.add(page);
+            pageOffset = 0;
+        }
+    }
+
+    /**
+     * The number of bytes written so far.
+     */
+    public int size() {
+        return pages.isEmpty() ? 0 : (pages.size() - 1) * PAGE_SIZE + pageOffset;
+    }
+
+    /**
+     * The bytes written so far. They share the pooled pages and must not be used after the stream was released.
+     */
+    public BytesReference bytes() {
+        ensureNotReleased();
+        if (pages.isEmpty()) {
+            return BytesArray.EMPTY;
+        }
+        if (pages.size() == 1) {
+            return new BytesArray(page, 0, pageOffset);
+        }
+        BytesReference[] references = new BytesReference[pages.size()];
+        for (int i = 0; i < references.length - 1; i++) {
+            references[i] = new BytesArray(pages.get(i));
+        }
+        references[references.length - 1] = new BytesArray(page, 0, pageOffset);
+        return new CompositeBytesReference(references);
+    }
+
+    /**
+     * A copy of the bytes written so far in an array of their exact size, which stays valid after the stream was released.
+     */
+    public BytesArray copyBytes() {
+        ensureNotReleased();
+        if (pages.isEmpty()) {
+            return BytesArray.EMPTY;
+        }
+        byte[] copy = new byte[size()];
+        int offset = 0;
+        for (int i = 0; i < pages.size() - 1; i++) {
+            System.arraycopy(pages.get(i), 0, copy, offset, PAGE_SIZE);
+            offset += PAGE_SIZE;
+        }
+        System.arraycopy(page, 0, copy, offset, pageOffset);
+        return new BytesArray(copy);
+    }
+
+    private void ensureNotReleased() {
+        if (released.get()) {
+            throw new IllegalStateException("the output stream has already been released");
+        }
+    }
+
+    /**
+     * Does nothing, the generator closes its output before the bytes are read. Use {@link #release()} to give the pages back.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Gives the pages back to the pool. Calling this more than once, also concurrently, has no effect.
+     */
+    public void release() {
+        if (released.compareAndSet(false, true) == false) {
+            return;
+        }
+        if (TRACK_LEAKS) {
+            ACQUIRED.remove(this);
+        }
+        for (byte[] page : pages) {
+            if (TRACK_LEAKS) {
+                Arrays.fill(page, (byte) 0);
+            }
+            stripe.release(page);
+        }
+        pages.clear();
+        page = null;
+        pageOffset = PAGE_SIZE;
+    }
+
+    /**
+     * Fails if any stream created since the last call has not been released yet. Only has an effect when assertions are enabled.
+     */
+    public static void ensureAllReleased() {
+        if (ACQUIRED.isEmpty()) {
+            return;
+        }
+        List<Throwable> leaks = new ArrayList<>(ACQUIRED.values());
+        ACQUIRED.clear();
+        AssertionError error = new AssertionError(leaks.size() + " pooled XContentBuilder output stream(s) have not been released");
+        for (Throwable leak : leaks) {
+            error.addSuppressed(leak);
+        }
+        throw error;
+    }
+
+    private static Stripe stripe() {
+        long id = Thread.currentThread().getId();
+        return STRIPES[(int) (id ^ (id >>> 16)) & (STRIPES.length - 1)];
+    }
+
+    private static final class Stripe {
+        private final ArrayDeque<byte[]> pages = new ArrayDeque<>();
+
+        synchronized byte[] acquire() {
+            byte[] page = pages.pollFirst();
+            return page == null ? new byte[PAGE_SIZE] : page;
+        }
+
+        synchronized void release(byte[] page) {
+            if (pages.size() < MAX_PAGES_PER_STRIPE) {
+                pages.addFirst(page);
+            }
+        }
+    }
+}
@@ -86,6 +86,23 @@ public final class XContentBuilder implements Releasable, Flushable {
         return new XContentBuilder(xContent, new BytesStreamOutput(), includes, excludes);
     }
 
+    /**
+     * Create a new {@link XContentBuilder} using the given {@link XContent} content that writes into pooled pages.
+     * <p>
+     * The builder uses an internal {@link RecyclingOutputStream} which borrows its pages from a shared pool. The pages are given back
+     * when the builder is {@link #close() closed}, so the builder must always be closed. {@link #bytes()} returns a copy of exactly the
+     * size of the content that does not share the pooled pages and can be kept after the builder is closed, e.g. by
+     * {@code IndexRequest#source(XContentBuilder)} until the request is sent. This avoids the allocations of growing the output while
+     * building many small documents.
+     *
+     * @param xContent the {@link XContent}
+     * @return a new {@link XContentBuilder}
+     * @throws IOException if an {@link IOException} occurs while building the content
+     */
+    public static XContentBuilder pooledBuilder(XContent xContent) throws IOException {
+        return new XContentBuilder(xContent, new RecyclingOutputStream());
+    }
+
     public static final DateTimeFormatter DEFAULT_DATE_PRINTER = ISODateTimeFormat.dateTime().withZone(DateTimeZone.UTC);
 
     private static final Map<Class<?>, Writer> WRITERS;
@@ -155,7 +172,7 @@ public final class XContentBuilder implements Releasable, Flushable {
     /**
      * Creates a new builder using the provided XContent, output stream and some inclusive and/or exclusive filters. When both exclusive and
      * inclusive filters are provided, the underlying builder will first use exclusion filters to remove fields and then will check the
-     * remaining fields against the inclusive filters.
+     * remaining fields against the inclusive filters. The filters are compiled once per set of patterns, see {@link FieldPathFilter}.
      * <p>
      * Make sure to call {@link #close()} when the builder is done with.
      *
@@ -165,7 +182,12 @@ public final class XContentBuilder implements Releasable, Flushable {
      */
     public XContentBuilder(XContent xContent, OutputStream os, Set<String> includes, Set<String> excludes) throws IOException {
         this.bos = os;
-        this.generator = xContent.createGenerator(bos, includes, excludes);
+        FieldPathFilter filter = FieldPathFilter.compile(includes, excludes);
+        if (filter.isMatchAll()) {
+            this.generator = xContent.createGenerator(bos);
+        } else {
+            this.generator = new FieldPathFilteringGenerator(xContent.createGenerator(bos), filter);
+        }
     }
 
     public XContentType contentType() {
@@ -844,6 +866,23 @@ public final class XContentBuilder implements Releasable, Flushable {
         return this;
     }
 
+    ////////////////////////////////////////////////////////////////////////////
+    // XContentObjectWriter
+    //////////////////////////////////
+
+    public <T> XContentBuilder field(String name, XContentObjectWriter<T> writer, T value) throws IOException {
+        return field(name).value(writer, value);
+    }
+
+    /**
+     * Writes the given object with the given writer, without going through the type based dispatch of {@link #value(Object)}.
+     */
+    public <T> XContentBuilder value(XContentObjectWriter<T> writer, T value) throws IOException {
+        Objects.requireNonNull(writer, "writer must not be null");
+        writer.write(this, value);
+        return this;
+    }
+
     ////////////////////////////////////////////////////////////////////////////
     // Maps & Iterable
     //////////////////////////////////
@@ -1027,8 +1066,18 @@ public final class XContentBuilder implements Releasable, Flushable {
         generator.flush();
     }
 
+    /**
+     * Closes the generator and, for builders created with {@link #pooledBuilder(XContent)}, gives the pages back to the pool.
+     */
     @Override
     public void close() {
+        closeGenerator();
+        if (bos instanceof RecyclingOutputStream) {
+            ((RecyclingOutputStream) bos).release();
+        }
+    }
+
+    private void closeGenerator() {
         try {
             generator.close();
         } catch (IOException e) {
@@ -1040,8 +1089,15 @@ public final class XContentBuilder implements Releasable, Flushable {
         return this.generator;
     }
 
+    /**
+     * The content of this builder. For builders created with {@link #pooledBuilder(XContent)} this is a copy, which stays valid after
+     * the pages are given back to the pool.
+     */
     public BytesReference bytes() {
-        close();
+        closeGenerator();
+        if (bos instanceof RecyclingOutputStream) {
+            return ((RecyclingOutputStream) bos).copyBytes();
+        }
         return ((BytesStream) bos).bytes();
     }
 
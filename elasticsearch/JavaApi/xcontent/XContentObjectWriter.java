@@ -0,0 +1,185 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.common.xcontent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Writes objects of one class as XContent objects, with one writer per field that is built once and reused for every object.
+ * <p>
+ * Writing an object with {@link XContentBuilder#value(XContentObjectWriter, Object)} goes straight to the field writers: primitive
+ * fields are read through {@link ToIntFunction}, {@link ToLongFunction}, {@link ToDoubleFunction} and {@link Predicate} accessors and
+ * written without boxing, and no type based dispatch happens except for fields declared with {@link Builder#field(String, Function)}.
+ * <pre>
+ * XContentObjectWriter&lt;Person&gt; writer = XContentObjectWriter.builder(Person.class)
+ *     .stringField("name", Person::getName)
+ *     .intField("age", Person::getAge)
+ *     .objectField("address", Person::getAddress, ADDRESS_WRITER)
+ *     .build();
+ * builder.value(writer, person);
+ * </pre>
+ * Instances are immutable and can be shared between threads.
+ */
+public final class XContentObjectWriter<T> {
+
+    @FunctionalInterface
+    private interface FieldWriter<T> {
+        void write(XContentBuilder builder, T value) throws IOException;
+    }
+
+    private final Class<T> type;
+    private final FieldWriter<T>[] fields;
+
+    private XContentObjectWriter(Class<T> type, FieldWriter<T>[] fields) {
+        this.type = type;
+        this.fields = fields;
+    }
+
+    /**
+     * Creates a builder for a writer of objects of the given class.
+     */
+    public static <T> Builder<T> builder(Class<T> type) {
+        return new Builder<>(type);
+    }
+
+    /**
+     * The class of the objects this writer writes.
+     */
+    public Class<T> type() {
+        return type;
+    }
+
+    /**
+     * Writes the given object as an XContent object, or a null value if the object is {@code null}.
+     */
+    void write(XContentBuilder builder, T value) throws IOException {
+        if (value == null) {
+            builder.nullValue();
+            return;
+        }
+        builder.startObject();
+        for (FieldWriter<T> field : fields) {
+            field.write(builder, value);
+        }
+        builder.endObject();
+    }
+
+    public static final class Builder<T> {
+        private final Class<T> type;
+        private final List<FieldWriter<T>> fields = new ArrayList<>();
+        private final Set<String> names = new HashSet<>();
+
+        private Builder(Class<T> type) {
+            this.type = Objects.requireNonNull(type, "type must not be null");
+        }
+
+        public Builder<T> booleanField(String name, Predicate<? super T> accessor) {
+            Objects.requireNonNull(accessor, "accessor must not be null");
+            return add(name, (b, v) -> b.field(name, accessor.test(v)));
+        }
+
+        public Builder<T> intField(String name, ToIntFunction<? super T> accessor) {
+            Objects.requireNonNull(accessor, "accessor must not be null");
+            return add(name, (b, v) -> b.field(name, accessor.applyAsInt(v)));
+        }
+
+        public Builder<T> longField(String name, ToLongFunction<? super T> accessor) {
+            Objects.requireNonNull(accessor, "accessor must not be null");
+            return add(name, (b, v) -> b.field(name, accessor.applyAsLong(v)));
+        }
+
+        public Builder<T> doubleField(String name, ToDoubleFunction<? super T> accessor) {
+            Objects.requireNonNull(accessor, "accessor must not be null");
+            return add(name, (b, v) -> b.field(name, accessor.applyAsDouble(v)));
+        }
+
+        /**
+         * A string field, written as a null value when the accessor returns {@code null}.
+         */
+        public Builder<T> stringField(String name, Function<? super T, String> accessor) {
+            Objects.requireNonNull(accessor, "accessor must not be null");
+            return add(name, (b, v) -> b.field(name, accessor.apply(v)));
+        }
+
+        /**
+         * A field whose value is written by another object writer.
+         */
+        public <U> Builder<T> objectField(String name, Function<? super T, ? extends U> accessor, XContentObjectWriter<U> writer) {
+            Objects.requireNonNull(accessor, "accessor must not be null");
+            Objects.requireNonNull(writer, "writer must not be null");
+            return add(name, (b, v) -> b.field(name, writer, accessor.apply(v)));
+        }
+
+        /**
+         * An array field whose elements are written by another object writer, written as a null value when the accessor returns
+         * {@code null}.
+         */
+        public <U> Builder<T> arrayField(String name, Function<? super T, ? extends Iterable<? extends U>> accessor,
+                                         XContentObjectWriter<U> writer) {
+            Objects.requireNonNull(accessor, "accessor must not be null");
+            Objects.requireNonNull(writer, "writer must not be null");
+            return add(name, (b, v) -> {
+                Iterable<? extends U> values = accessor.apply(v);
+                if (values == null) {
+                    b.nullField(name);
+                    return;
+                }
+                b.startArray(name);
+                for (U value : values) {
+                    writer.write(b, value);
+                }
+                b.endArray();
+            });
+        }
+
+        /**
+         * A field of any type, written like {@link XContentBuilder#field(String, Object)} does, including its type based dispatch.
+         */
+        public Builder<T> field(String name, Function<? super T, ?> accessor) {
+            Objects.requireNonNull(accessor, "accessor must not be null");
+            return add(name, (b, v) -> b.field(name, accessor.apply(v)));
+        }
+
+        private Builder<T> add(String name, FieldWriter<T> field) {
+            XContentBuilder.ensureNameNotNull(name);
+            if (names.add(name) == false) {
+                throw new IllegalArgumentException("field [" + name + "] has already been added to the writer for [" + type.getName()
+                    + "]");
+            }
+            fields.add(field);
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public XContentObjectWriter<T> build() {
+            return new XContentObjectWriter<>(type, fields.toArray(new FieldWriter[fields.size()]));
+        }
+    }
+}